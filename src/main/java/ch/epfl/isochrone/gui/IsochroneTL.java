@@ -15,12 +15,17 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Paths;
 
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.BorderFactory;
 import javax.swing.Icon;
@@ -44,10 +49,14 @@ import ch.epfl.isochrone.geo.PointOSM;
 import ch.epfl.isochrone.geo.PointWGS84;
 import ch.epfl.isochrone.tiledmap.CachedTileProvider;
 import ch.epfl.isochrone.tiledmap.ColorTable;
+import ch.epfl.isochrone.tiledmap.DiskTileStore;
+import ch.epfl.isochrone.tiledmap.IsochroneTileCache;
 import ch.epfl.isochrone.tiledmap.IsochroneTileProvider;
 import ch.epfl.isochrone.tiledmap.OSMTileProvider;
+import ch.epfl.isochrone.tiledmap.TileCache;
 import ch.epfl.isochrone.tiledmap.TileProvider;
 import ch.epfl.isochrone.tiledmap.TransparentTileProvider;
+import ch.epfl.isochrone.timetable.CancellationToken;
 import ch.epfl.isochrone.timetable.Date;
 import ch.epfl.isochrone.timetable.Date.Month;
 import ch.epfl.isochrone.timetable.FastestPathTree;
@@ -65,6 +74,11 @@ import ch.epfl.isochrone.timetable.TimeTableReader;
  */
 public final class IsochroneTL {
     private static final String OSM_TILE_URL = "http://b.tile.openstreetmap.org/";
+    private static final String TILE_STORE_DIRECTORY = ".isochrone/tiles";
+    private static final long TILE_STORE_BYTES = 256L << 20;
+    private static final long TILE_STORE_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    // enough for the visible and prefetched tiles of a 4K screen
+    private static final long TILE_CACHE_BYTES = 128L << 20;
     private static final int INITIAL_ZOOM = 11;
     private static final int MAX_ZOOM = 19;
     private static final int MIN_ZOOM = 10;
@@ -88,7 +102,23 @@ public final class IsochroneTL {
     private FastestPathTree fastestPathTree;
     private final TiledMapComponent tiledMapComponent;
     private TileProvider isoTileProvider;
+    private final IsochroneTileCache isoTileCache = new IsochroneTileCache(TILE_CACHE_BYTES, true);
     private final ColorTable colors;
+    // the graphs are read and the fastest paths searched in a background
+    // thread, one query after the other; the search of a query is
+    // cancelled when a new one is made, and the renderings of its tiles
+    // when its layer is replaced, so that rapid changes of the date or
+    // the time only cost the computations of the last one
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "fastest-path-search");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private CancellationToken searchToken = new CancellationToken();
+    private CancellationToken renderingToken = new CancellationToken();
 
     private Point oldMouseLocation;
     private Point oldViewPosition;
@@ -99,7 +129,16 @@ public final class IsochroneTL {
      * @throws IOException  if there is an IO problem.
      */
     public IsochroneTL() throws IOException {
-        TileProvider bgTileProvider = new CachedTileProvider(new OSMTileProvider(new URL(OSM_TILE_URL)));
+        DiskTileStore tileStore;
+        try {
+            tileStore = new DiskTileStore(Paths.get(System.getProperty("user.home"),
+                    TILE_STORE_DIRECTORY), TILE_STORE_BYTES, TILE_STORE_MAX_AGE);
+        } catch (IOException e) {
+            // the tiles are then downloaded at every start
+            tileStore = null;
+        }
+        TileProvider bgTileProvider = new CachedTileProvider(new OSMTileProvider(new URL(OSM_TILE_URL), tileStore),
+                new TileCache(TILE_CACHE_BYTES, TileCache.Eviction.LRU));
         this.tiledMapComponent = new TiledMapComponent(INITIAL_ZOOM);
 
         String baseResourceName = "/time-table/";
@@ -130,7 +169,7 @@ public final class IsochroneTL {
         colorlist.add(new Color((float) 0.0, (float) 0.0, (float) 0.0));
         this.colors = new ColorTable(WALKING_TIME, colorlist);
 
-        this.isoTileProvider = new CachedTileProvider(new TransparentTileProvider(new IsochroneTileProvider(fastestPathTree, colors, WALKING_SPEED), ALPHA));
+        this.isoTileProvider = isochroneTileProvider();
         this.tiledMapComponent.addTileProvider(bgTileProvider).addTileProvider(isoTileProvider);
     }
 
@@ -142,7 +181,6 @@ public final class IsochroneTL {
     public void setStartingStop(Stop stop) {
         this.startingStop = stop;
         updateFastestPathTree();
-        updateMap();
     }
 
 
@@ -172,39 +210,74 @@ public final class IsochroneTL {
             newDate = date.relative(-1);
         }
 
-        if (this.date.compareTo(newDate) != 0)  {
-            this.date = newDate;
-            this.departureTime = newDepartureTime;
-            updateServicesAndGraph();
-        } else {
-            this.departureTime = newDepartureTime;
-            updateFastestPathTree();
-            updateMap();
-        }
-    }
-
-    private void updateServicesAndGraph() {
-        Set<Service> newServices = timeTable.servicesForDate(date);
-        if (!services.equals(newServices)) {
-            this.services = newServices;
-            try {
-                this.graph = timeTableReader.readGraphForServices(stops, services, WALKING_TIME, WALKING_SPEED);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            updateFastestPathTree();
-            updateMap();
-        }
+        this.date = newDate;
+        this.departureTime = newDepartureTime;
+        updateFastestPathTree();
     }
 
+    // the services and the graph are those of the displayed map, and are
+    // only replaced with it: the graph is read again if the services of
+    // the date differ from them; the map is updated once the search is
+    // finished, unless a newer query has been made in the meantime
     private void updateFastestPathTree() {
-        this.fastestPathTree = graph.fastestPaths(startingStop, departureTime);
+        searchToken.cancel();
+        final CancellationToken token = new CancellationToken();
+        final Date date = this.date;
+        final Set<Service> services = this.services;
+        final Graph graph = this.graph;
+        final Stop startingStop = this.startingStop;
+        final int departureTime = this.departureTime;
+        this.searchToken = token;
+        searcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Set<Service> newServices;
+                final Graph newGraph;
+                final FastestPathTree tree;
+                try {
+                    token.throwIfCancelled();
+                    newServices = timeTable.servicesForDate(date);
+                    newGraph = newServices.equals(services)
+                            ? graph
+                            : timeTableReader.readGraphForServices(stops, newServices, WALKING_TIME, WALKING_SPEED);
+                    tree = newGraph.fastestPaths(startingStop, departureTime, token);
+                } catch (CancellationException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (! token.isCancelled()) {
+                            IsochroneTL.this.services = newServices;
+                            IsochroneTL.this.graph = newGraph;
+                            fastestPathTree = tree;
+                            updateMap();
+                        }
+                    }
+                });
+            }
+        });
     }
 
+    // the renderings of the replaced layer are only abandoned now, so that
+    // its tiles are drawn until the new ones are available
     private void updateMap() {
-        TileProvider newIsoTileProvider = new CachedTileProvider(new TransparentTileProvider(new IsochroneTileProvider(fastestPathTree, colors, WALKING_SPEED), ALPHA));
-        this.tiledMapComponent.removeTileProvider(isoTileProvider).addTileProvider(newIsoTileProvider);
+        CancellationToken oldRenderingToken = renderingToken;
+        this.renderingToken = new CancellationToken();
+        TileProvider newIsoTileProvider = isochroneTileProvider();
+        this.tiledMapComponent.replaceTileProvider(isoTileProvider, newIsoTileProvider);
         this.isoTileProvider = newIsoTileProvider;
+        oldRenderingToken.cancel();
+    }
+
+    // the tiles of the queries already displayed are kept in isoTileCache
+    private TileProvider isochroneTileProvider() {
+        TileProvider renderer = new TransparentTileProvider(new IsochroneTileProvider(fastestPathTree, colors, WALKING_SPEED,
+                IsochroneTileProvider.Rendering.DISCS, renderingToken), ALPHA);
+        return isoTileCache.cachedProvider(renderer, graph, fastestPathTree, colors, WALKING_SPEED);
     }
 
     private JComponent createCenterPanel() {
@@ -1,22 +1,37 @@
 package ch.epfl.isochrone.gui;
 
+import java.awt.AlphaComposite;
+import java.awt.Composite;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import static java.lang.Math.pow;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import ch.epfl.isochrone.tiledmap.Tile;
+import ch.epfl.isochrone.tiledmap.TileCache;
+import ch.epfl.isochrone.tiledmap.TileLoader;
 import ch.epfl.isochrone.tiledmap.TileProvider;
 
 /**
  * TiledMapComponent is a swing component capable of displaying
  * a tiled map whose tiles are provided by one or more tile providers.
+ * The tiles are obtained in background threads; until a tile is
+ * available, a placeholder is drawn in its place.
  *
  * @author Jakob Bauer (223590)
  */
@@ -25,9 +40,17 @@ public final class TiledMapComponent extends JComponent {
 
     private final static int MAX_ZOOM = 19;
     private final static int MIN_ZOOM = 10;
+    private final static int MAX_LOADED_TILES = 512;
+    // maximum number of tiles of a layer prefetched around the visible ones
+    private final static int MAX_PREFETCHED_TILES = 128;
+    // delay after which a tile that could not be obtained is requested
+    // again, so that a failing provider is not asked continuously
+    private final static int RETRY_DELAY_MILLIS = 5000;
 
     private int zoom;
-    private final List<TileProvider> providers;
+    private final List<Layer> layers;
+    private final TileLoader loader;
+    private boolean prefetching = true;
 
     /**
      * Class constructor.
@@ -41,7 +64,8 @@ public final class TiledMapComponent extends JComponent {
             throw new IllegalArgumentException("invalid zoom level");
         }
         this.zoom = zoom;
-        this.providers = new ArrayList<TileProvider>();
+        this.layers = new ArrayList<Layer>();
+        this.loader = new TileLoader(Math.max(2, Runtime.getRuntime().availableProcessors()));
     }
 
     /**
@@ -76,7 +100,7 @@ public final class TiledMapComponent extends JComponent {
      *              provider added to it.
      */
     public TiledMapComponent addTileProvider(TileProvider tp) {
-        this.providers.add(tp);
+        this.layers.add(new Layer(tp));
         repaint();
         return this;
     }
@@ -90,11 +114,67 @@ public final class TiledMapComponent extends JComponent {
      *              removed provider.
      */
     public TiledMapComponent removeTileProvider(TileProvider tp) {
-        this.providers.remove(tp);
+        int index = indexOf(tp);
+        if (index >= 0) {
+            layers.remove(index).cancelAllRequests();
+        }
         repaint();
         return this;
     }
 
+    /**
+     * Replace a tile provider by another one, at the same position in
+     * the tile provider list. The tiles of the replaced provider are
+     * drawn until the ones of the new provider are available. This
+     * will cause a redrawing of the component.
+     *
+     * @param oldTp the tile provider to be replaced.
+     * @param newTp the tile provider replacing it.
+     * @return      the tiled map component with the provider replaced.
+     * @throws IllegalArgumentException if the provider to be replaced
+     *              is not in the tile provider list.
+     */
+    public TiledMapComponent replaceTileProvider(TileProvider oldTp, TileProvider newTp) {
+        int index = indexOf(oldTp);
+        if (index < 0) {
+            throw new IllegalArgumentException("unknown tile provider");
+        }
+        Layer oldLayer = layers.get(index);
+        oldLayer.cancelAllRequests();
+        // only one replaced provider is kept
+        oldLayer.fallback = null;
+        Layer newLayer = new Layer(newTp);
+        newLayer.fallback = oldLayer;
+        layers.set(index, newLayer);
+        repaint();
+        return this;
+    }
+
+    private int indexOf(TileProvider tp) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).provider == tp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enables or disables the prefetching of the tiles surrounding the
+     * visible ones, and of the tiles of the zoom levels just above and
+     * below. Disabling it cancels the pending prefetches.
+     *
+     * @param prefetching   true if tiles are to be prefetched.
+     */
+    public void setPrefetching(boolean prefetching) {
+        this.prefetching = prefetching;
+        if (! prefetching) {
+            for (Layer layer : layers) {
+                layer.cancelPrefetches();
+            }
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.swing.JComponent#getPreferredSize()
      */
@@ -120,19 +200,284 @@ public final class TiledMapComponent extends JComponent {
         int xBottomRight = visibleToTile(visible.x + visible.width);
         int yBottomRight = visibleToTile(visible.y + visible.height);
 
-        // Third, the specified tiles have to be obtained from the providers
+        // the tiles that are likely to be displayed next: a ring around
+        // the visible ones, and the same area at the zoom levels just
+        // above and below, in that order
+        TileRange visibleRange = new TileRange(zoom, xTopLeft, yTopLeft, xBottomRight, yBottomRight);
+        List<TileRange> wanted = new ArrayList<TileRange>();
+        wanted.add(visibleRange);
+        if (prefetching) {
+            wanted.add(new TileRange(zoom, xTopLeft - 1, yTopLeft - 1, xBottomRight + 1, yBottomRight + 1));
+            if (zoom > MIN_ZOOM) {
+                wanted.add(new TileRange(zoom - 1, xTopLeft / 2, yTopLeft / 2, xBottomRight / 2, yBottomRight / 2));
+            }
+            if (zoom < MAX_ZOOM) {
+                wanted.add(new TileRange(zoom + 1, 2 * xTopLeft, 2 * yTopLeft, 2 * xBottomRight + 1, 2 * yBottomRight + 1));
+            }
+        }
+
+        // Third, the specified tiles have to be obtained from the providers,
+        // without waiting for the ones that are not loaded yet
         // Fourth, the tiles have to be drawn using drawImage()
-        for (TileProvider tp : providers) {
+        for (Layer layer : layers) {
+            layer.cancelRequestsOutside(wanted);
+            boolean complete = true;
             for (int i = xTopLeft; i <= xBottomRight; i++) {
                 for (int j = yTopLeft; j <= yBottomRight; j++) {
-                    Tile tile = tp.tileAt(zoom, i, j);
-                    g.drawImage(tile.image(), null, i * 256, j * 256);
+                    Tile tile = layer.loadedTile(zoom, i, j);
+                    if (tile != null) {
+                        drawTile(g, tile, i * 256, j * 256, 256, 0, 0, 256);
+                    } else {
+                        complete = false;
+                        layer.request(zoom, i, j, TileLoader.Priority.VISIBLE);
+                        drawPlaceholder(g, layer, i, j);
+                    }
                 }
             }
+            if (complete) {
+                layer.fallback = null;
+            }
+        }
+
+        // Finally, the tiles likely to be displayed next are requested,
+        // after the visible ones, without evicting these from the layers
+        if (prefetching) {
+            int budget = Math.min(MAX_PREFETCHED_TILES, MAX_LOADED_TILES - visibleRange.size());
+            for (Layer layer : layers) {
+                layer.prefetch(wanted.subList(1, wanted.size()), visibleRange, budget);
+            }
         }
     }
 
+    // draws the tile of the replaced provider, or the corresponding
+    // quarter of the parent tile scaled up, if one of them is loaded
+    private void drawPlaceholder(Graphics2D g, Layer layer, int x, int y) {
+        for (Layer l = layer; l != null; l = l.fallback) {
+            Tile tile = l.loadedTile(zoom, x, y);
+            if (tile != null) {
+                drawTile(g, tile, x * 256, y * 256, 256, 0, 0, 256);
+                return;
+            }
+        }
+        for (Layer l = layer; l != null; l = l.fallback) {
+            Tile parent = l.loadedTile(zoom - 1, x / 2, y / 2);
+            if (parent != null) {
+                drawTile(g, parent, x * 256, y * 256, 256, (x % 2) * 128, (y % 2) * 128, 128);
+                return;
+            }
+        }
+    }
+
+    // draws the square of the image at (sx, sy) of side sSize in the
+    // square of the component at (dx, dy) of side dSize
+    private static void drawTile(Graphics2D g, Tile tile, int dx, int dy, int dSize,
+            int sx, int sy, int sSize) {
+        Composite composite = g.getComposite();
+        if (tile.opacity() < 1) {
+            // constant transparency is applied while drawing
+            g.setComposite(AlphaComposite.getInstance(
+                    AlphaComposite.SRC_OVER, (float) tile.opacity()));
+        }
+        g.drawImage(tile.image(), dx, dy, dx + dSize, dy + dSize,
+                sx, sy, sx + sSize, sy + sSize, null);
+        g.setComposite(composite);
+    }
+
     private int visibleToTile(int visibleCoordinate) {
         return visibleCoordinate / 256;
     }
+
+    // the tiles of a provider that have been loaded, and the ones that
+    // are being loaded; only accessed by the event dispatch thread
+    private final class Layer {
+        private final TileProvider provider;
+        @SuppressWarnings("serial")
+        private final LinkedHashMap<Long, Tile> loaded =
+            new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Tile> e) {
+                    return size() > MAX_LOADED_TILES;
+                }
+            };
+        private final Map<Long, Request> pending = new HashMap<Long, Request>();
+        // the layer of the replaced provider, drawn until this one is loaded
+        private Layer fallback;
+
+        Layer(TileProvider provider) {
+            this.provider = provider;
+        }
+
+        Tile loadedTile(int zoom, int x, int y) {
+            long key = TileCache.packCoordinates(zoom, x, y);
+            Tile tile = loaded.get(key);
+            if ((tile != null) && tile.isExpired()) {
+                loaded.remove(key);
+                return null;
+            }
+            return tile;
+        }
+
+        void request(int zoom, int x, int y, TileLoader.Priority priority) {
+            long key = TileCache.packCoordinates(zoom, x, y);
+            Request old = pending.get(key);
+            if (old != null) {
+                if (old.priority.compareTo(priority) <= 0) {
+                    return;
+                }
+                // a prefetched tile became visible
+                old.future.cancel(false);
+            }
+            Request r = new Request(this, key, zoom, x, y, priority);
+            pending.put(key, r);
+            r.future = loader.load(provider, zoom, x, y, priority, r);
+        }
+
+        // requests at most budget tiles of the ranges that are neither
+        // visible nor already loaded or requested
+        void prefetch(List<TileRange> ranges, TileRange visibleRange, int budget) {
+            int requested = 0;
+            for (Request r : pending.values()) {
+                if (r.priority == TileLoader.Priority.PREFETCH) {
+                    requested++;
+                }
+            }
+            for (TileRange range : ranges) {
+                for (int i = range.x0; i <= range.x1; i++) {
+                    for (int j = range.y0; j <= range.y1; j++) {
+                        if (requested >= budget) {
+                            return;
+                        }
+                        long key = TileCache.packCoordinates(range.zoom, i, j);
+                        if (! visibleRange.contains(range.zoom, i, j)
+                                && ! loaded.containsKey(key) && ! pending.containsKey(key)) {
+                            request(range.zoom, i, j, TileLoader.Priority.PREFETCH);
+                            requested++;
+                        }
+                    }
+                }
+            }
+        }
+
+        void cancelRequestsOutside(List<TileRange> ranges) {
+            Iterator<Request> it = pending.values().iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                boolean wanted = false;
+                for (TileRange range : ranges) {
+                    wanted |= range.contains(r.zoom, r.x, r.y);
+                }
+                if (! wanted) {
+                    r.future.cancel(false);
+                    it.remove();
+                }
+            }
+        }
+
+        void cancelPrefetches() {
+            Iterator<Request> it = pending.values().iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (r.priority == TileLoader.Priority.PREFETCH) {
+                    r.future.cancel(false);
+                    it.remove();
+                }
+            }
+        }
+
+        void cancelAllRequests() {
+            for (Request r : pending.values()) {
+                r.future.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+
+    private final class Request implements TileLoader.Listener {
+        private final Layer layer;
+        private final long key;
+        private final int zoom, x, y;
+        private final TileLoader.Priority priority;
+        private Future<Tile> future;
+
+        Request(Layer layer, long key, int zoom, int x, int y, TileLoader.Priority priority) {
+            this.layer = layer;
+            this.key = key;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.priority = priority;
+        }
+
+        @Override
+        public void tileLoaded(final Tile tile) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    // a tile that is still loaded after its request was
+                    // cancelled is kept anyway
+                    if (layer.pending.get(key) == Request.this) {
+                        layer.pending.remove(key);
+                    }
+                    if (layers.contains(layer)) {
+                        layer.loaded.put(key, tile);
+                        Rectangle bounds = new Rectangle(x * 256, y * 256, 256, 256);
+                        if ((zoom == TiledMapComponent.this.zoom)
+                                && getVisibleRect().intersects(bounds)) {
+                            repaint(bounds);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void tileFailed(Throwable cause) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (layer.pending.get(key) != Request.this) {
+                        return;
+                    }
+                    layer.pending.remove(key);
+                    // requested again by the repaint, if still visible
+                    Timer retry = new Timer(RETRY_DELAY_MILLIS, new ActionListener() {
+                        @Override
+                        public void actionPerformed(ActionEvent e) {
+                            Rectangle bounds = new Rectangle(x * 256, y * 256, 256, 256);
+                            if (layers.contains(layer)
+                                    && (zoom == TiledMapComponent.this.zoom)
+                                    && getVisibleRect().intersects(bounds)) {
+                                repaint(bounds);
+                            }
+                        }
+                    });
+                    retry.setRepeats(false);
+                    retry.start();
+                }
+            });
+        }
+    }
+
+    // the tiles of a zoom level whose coordinates are in a rectangle,
+    // clamped to the coordinates of the existing tiles
+    private static final class TileRange {
+        private final int zoom, x0, y0, x1, y1;
+
+        TileRange(int zoom, int x0, int y0, int x1, int y1) {
+            int max = (1 << zoom) - 1;
+            this.zoom = zoom;
+            this.x0 = Math.max(0, x0);
+            this.y0 = Math.max(0, y0);
+            this.x1 = Math.min(max, x1);
+            this.y1 = Math.min(max, y1);
+        }
+
+        boolean contains(int zoom, int x, int y) {
+            return (zoom == this.zoom) && (x >= x0) && (x <= x1) && (y >= y0) && (y <= y1);
+        }
+
+        int size() {
+            return Math.max(0, x1 - x0 + 1) * Math.max(0, y1 - y0 + 1);
+        }
+    }
 }
@@ -0,0 +1,374 @@
+package ch.epfl.isochrone.server;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ch.epfl.isochrone.tiledmap.ColorTable;
+import ch.epfl.isochrone.tiledmap.IsochroneTileCache;
+import ch.epfl.isochrone.tiledmap.IsochroneTileProvider;
+import ch.epfl.isochrone.tiledmap.TileProvider;
+import ch.epfl.isochrone.timetable.Date;
+import ch.epfl.isochrone.timetable.DirectoryTimeTableSource;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Graph;
+import ch.epfl.isochrone.timetable.ResourceTimeTableSource;
+import ch.epfl.isochrone.timetable.SecondsPastMidnight;
+import ch.epfl.isochrone.timetable.Stop;
+import ch.epfl.isochrone.timetable.TimeTableReloader;
+import ch.epfl.isochrone.timetable.TimeTableSource;
+
+/**
+ * A headless HTTP server of isochrone tiles, for web maps. The tile
+ * (zoom, x, y) of the isochrone map of a starting stop, a date and a
+ * departure time is served as a PNG image at
+ * /iso/{stop}/{date}/{time}/{zoom}/{x}/{y}.png, where the date has the
+ * form YYYY-MM-DD and the time the form HH:MM or HH:MM:SS.
+ *
+ * The requests are served by a pool of threads, which also render and
+ * encode the tiles. The fastest-path trees of the recent queries and the
+ * rendered tiles are kept in memory. The tiles are opaque: clients draw
+ * them with the opacity of their choice.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class IsochroneTileServer {
+
+    private static final String PREFIX = "/iso/";
+    private static final Pattern PATH = Pattern.compile(
+            "/iso/([^/]+)/(\\d{4})-(\\d{2})-(\\d{2})/(\\d{2}):(\\d{2})(?::(\\d{2}))?"
+            + "/(\\d{1,2})/(\\d{1,7})/(\\d{1,7})\\.png");
+    private static final int MAX_ZOOM = 20;
+    // before this time, the trips are those of the previous day
+    private static final int SPM_THRESHOLD = SecondsPastMidnight.fromHMS(4, 0, 0);
+    private static final int MAX_QUERIES = 256;
+    private static final long TILE_CACHE_BYTES = 256L << 20;
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final TimeTableReloader reloader;
+    private final ColorTable colors;
+    private final double walkingSpeed;
+    private final IsochroneTileCache tileCache = new IsochroneTileCache(TILE_CACHE_BYTES, true);
+    // distinguishes the tiles of this server from those of a previous run
+    private final String startTag = Long.toHexString(System.currentTimeMillis());
+    // the providers of the recent queries, by query and timetable generation
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, FutureTask<TileProvider>> providers =
+        new LinkedHashMap<String, FutureTask<TileProvider>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, FutureTask<TileProvider>> e) {
+                return size() > MAX_QUERIES;
+            }
+        };
+    private long stopsGeneration = -1;
+    private Map<String, Stop> stopsByName;
+
+    /**
+     * Class constructor. The server does not accept requests before it
+     * is started.
+     *
+     * @param address           the address on which the server listens,
+     *                          whose port can be 0 for any free port.
+     * @param reloader          the provider of the timetable and graphs.
+     * @param colors            the colors of the isochrones, which should
+     *                          be opaque.
+     * @param walkingSpeed      the walking speed in meters per second.
+     * @param numberOfThreads   the number of threads serving the requests.
+     * @throws IOException      if the server cannot listen on the address.
+     * @throws IllegalArgumentException if the number of threads is not
+     *                          positive.
+     */
+    public IsochroneTileServer(InetSocketAddress address, TimeTableReloader reloader,
+            ColorTable colors, double walkingSpeed, int numberOfThreads) throws IOException {
+        if (numberOfThreads <= 0) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.reloader = reloader;
+        this.colors = colors;
+        this.walkingSpeed = walkingSpeed;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tile-server-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(workers);
+        server.createContext(PREFIX, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server, after letting the requests being served finish
+     * for at most the given delay.
+     *
+     * @param delaySeconds  the maximum delay, in seconds.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+    }
+
+    /**
+     * Returns the port on which the server listens.
+     *
+     * @return  the port of the server.
+     */
+    public int port() { return server.getAddress().getPort(); }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (! (method.equals("GET") || method.equals("HEAD"))) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendError(exchange, 405, "method not allowed");
+            return;
+        }
+        Matcher m = PATH.matcher(exchange.getRequestURI().getRawPath());
+        if (! m.matches()) {
+            sendError(exchange, 404, "no such tile");
+            return;
+        }
+
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        Stop stop = stopNamed(snapshot, decode(m.group(1)));
+        int zoom = Integer.parseInt(m.group(8));
+        int x = Integer.parseInt(m.group(9));
+        int y = Integer.parseInt(m.group(10));
+        if ((stop == null) || (zoom > MAX_ZOOM) || (x >= (1 << zoom)) || (y >= (1 << zoom))) {
+            sendError(exchange, 404, "no such tile");
+            return;
+        }
+        Date date;
+        int time;
+        try {
+            date = new Date(Integer.parseInt(m.group(4)), Integer.parseInt(m.group(3)),
+                    Integer.parseInt(m.group(2)));
+            time = SecondsPastMidnight.fromHMS(Integer.parseInt(m.group(5)),
+                    Integer.parseInt(m.group(6)),
+                    (m.group(7) != null) ? Integer.parseInt(m.group(7)) : 0);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "invalid date or time");
+            return;
+        }
+        if (time <= SPM_THRESHOLD) {
+            time += SecondsPastMidnight.fromHMS(24, 0, 0);
+            date = date.relative(-1);
+        }
+
+        // the tile only depends on the path and on the timetable, which can
+        // be reloaded at any time: caches keep the tile but revalidate it
+        // at every use, which costs only a 304 while the timetable is the same
+        String etag = "\"" + startTag + "-" + snapshot.generation() + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "public, no-cache");
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        // the query is resolved for HEAD too, so that it gets the status
+        // of GET, but the tile is neither rendered nor encoded, so that its
+        // length is not sent
+        TileProvider provider;
+        try {
+            provider = provider(snapshot, stop, date, time);
+        } catch (ExecutionException e) {
+            sendError(exchange, 500, "could not compute the isochrones");
+            return;
+        }
+        if (method.equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        byte[] png = encode(provider.tileAt(zoom, x, y).image());
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, png.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(png);
+        }
+    }
+
+    // the tree of a query is computed once, by the first request needing it
+    private TileProvider provider(final TimeTableReloader.Snapshot snapshot,
+            final Stop stop, final Date date, final int time) throws ExecutionException {
+        String key = snapshot.generation() + "/" + stop.name() + "/" + date + "/" + time;
+        FutureTask<TileProvider> task;
+        boolean created = false;
+        synchronized (providers) {
+            task = providers.get(key);
+            if (task == null) {
+                task = new FutureTask<TileProvider>(new Callable<TileProvider>() {
+                    @Override
+                    public TileProvider call() throws IOException {
+                        Graph graph = snapshot.graphForDate(date);
+                        FastestPathTree tree = graph.fastestPaths(stop, time);
+                        TileProvider renderer = new IsochroneTileProvider(tree, colors,
+                                walkingSpeed, IsochroneTileProvider.Rendering.PIXELS);
+                        return tileCache.cachedProvider(renderer, graph, tree, colors, walkingSpeed);
+                    }
+                });
+                providers.put(key, task);
+                created = true;
+            }
+        }
+        if (created) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            // the query is computed again by the next request
+            synchronized (providers) {
+                providers.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized Stop stopNamed(TimeTableReloader.Snapshot snapshot, String name) {
+        if (stopsGeneration != snapshot.generation()) {
+            Map<String, Stop> byName = new HashMap<String, Stop>();
+            for (Stop s : snapshot.timeTable().stops()) {
+                byName.put(s.name(), s);
+            }
+            stopsByName = byName;
+            stopsGeneration = snapshot.generation();
+        }
+        return stopsByName.get(name);
+    }
+
+    // written in memory, as ImageIO.write would use a temporary file
+    static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static String decode(String pathSegment) {
+        try {
+            return URLDecoder.decode(pathSegment.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            // the response to HEAD has no body
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // the colors of IsochroneTL, for tranches of 5 minutes
+    static ColorTable defaultColors() {
+        List<Color> colorlist = new ArrayList<Color>();
+        colorlist.add(new Color((float) 1.0, (float) 0.0, (float) 0.0));
+        colorlist.add(new Color((float) 1.0, (float) 0.5, (float) 0.0));
+        colorlist.add(new Color((float) 1.0, (float) 1.0, (float) 0.0));
+        colorlist.add(new Color((float) 0.5, (float) 1.0, (float) 0.0));
+        colorlist.add(new Color((float) 0.0, (float) 1.0, (float) 0.0));
+        colorlist.add(new Color((float) 0.0, (float) 0.5, (float) 0.5));
+        colorlist.add(new Color((float) 0.0, (float) 0.0, (float) 1.0));
+        colorlist.add(new Color((float) 0.0, (float) 0.0, (float) 0.5));
+        colorlist.add(new Color((float) 0.0, (float) 0.0, (float) 0.0));
+        return new ColorTable(5 * 60, colorlist);
+    }
+
+    /**
+     * Starts a server.
+     *
+     * @param args  the port (8080 by default), the number of threads (the
+     *              number of processors by default) and the directory of
+     *              the timetable files, which are reloaded when they
+     *              change (the timetable of the application by default).
+     * @throws IOException  if there is an IO problem.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+        int threads = (args.length > 1)
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        TimeTableSource source = (args.length > 2)
+                ? new DirectoryTimeTableSource(Paths.get(args[2]))
+                : new ResourceTimeTableSource("/time-table/");
+        TimeTableReloader reloader = new TimeTableReloader(source, 5 * 60, 1.25);
+        if (args.length > 2) {
+            reloader.start(1, TimeUnit.MINUTES);
+        }
+
+        IsochroneTileServer server = new IsochroneTileServer(new InetSocketAddress(port),
+                reloader, defaultColors(), 1.25, threads);
+        server.start();
+        System.out.println("Serving isochrone tiles on port " + server.port());
+    }
+}
@@ -0,0 +1,352 @@
+package ch.epfl.isochrone.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.tiledmap.ColorTable;
+import ch.epfl.isochrone.tiledmap.IsochroneTileProvider;
+import ch.epfl.isochrone.tiledmap.TileArchive;
+import ch.epfl.isochrone.tiledmap.TileProvider;
+import ch.epfl.isochrone.timetable.Date;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.ResourceTimeTableSource;
+import ch.epfl.isochrone.timetable.SecondsPastMidnight;
+import ch.epfl.isochrone.timetable.Stop;
+import ch.epfl.isochrone.timetable.TimeTableReloader;
+
+/**
+ * Renders in advance the isochrone tiles of several maps over a region
+ * and a range of zoom levels, in parallel, into a TileArchive. The tiles
+ * of the i-th map are in the i-th layer of the archive.
+ *
+ * The tiles already in the archive are not rendered again, so that an
+ * interrupted generation can be resumed by starting it again.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class PyramidGenerator {
+
+    // the tiles of a task are rendered by one thread below this number
+    private static final int TILES_PER_TASK = 16;
+    // before this time, the trips are those of the previous day
+    private static final int SPM_THRESHOLD = SecondsPastMidnight.fromHMS(4, 0, 0);
+
+    /**
+     * An isochrone map to be rendered.
+     */
+    public static final class Query {
+        private final String stopName;
+        private final Date date;
+        private final int departureTime;
+
+        /**
+         * Class constructor.
+         *
+         * @param stopName      the name of the starting stop.
+         * @param date          the date of the trips.
+         * @param departureTime the departure time in seconds past midnight,
+         *                      between 24 and 30 hours for the trips
+         *                      after midnight of the date.
+         */
+        public Query(String stopName, Date date, int departureTime) {
+            this.stopName = stopName;
+            this.date = date;
+            this.departureTime = departureTime;
+        }
+
+        @Override
+        public String toString() {
+            return stopName + "/" + date + "/" + SecondsPastMidnight.toString(departureTime);
+        }
+    }
+
+    /**
+     * Receives the progress of a generation, in the threads rendering
+     * the tiles.
+     */
+    public interface Progress {
+        /**
+         * Called after every tile.
+         *
+         * @param done  the number of tiles that are in the archive.
+         * @param total the number of tiles of the generation.
+         */
+        void progressed(long done, long total);
+    }
+
+    private final TimeTableReloader reloader;
+    private final ColorTable colors;
+    private final double walkingSpeed;
+    private final ForkJoinPool pool;
+
+    /**
+     * Class constructor.
+     *
+     * @param reloader      the provider of the timetable and graphs.
+     * @param colors        the colors of the isochrones.
+     * @param walkingSpeed  the walking speed in meters per second.
+     * @param pool          the pool in which the tiles are rendered.
+     */
+    public PyramidGenerator(TimeTableReloader reloader, ColorTable colors,
+            double walkingSpeed, ForkJoinPool pool) {
+        this.reloader = reloader;
+        this.colors = colors;
+        this.walkingSpeed = walkingSpeed;
+        this.pool = pool;
+    }
+
+    /**
+     * Renders the tiles of the given maps that intersect a region, at the
+     * given zoom levels, and finishes the archive.
+     *
+     * @param queries       the maps to be rendered.
+     * @param corner1       a corner of the region.
+     * @param corner2       the opposite corner of the region.
+     * @param minZoom       the smallest zoom level.
+     * @param maxZoom       the largest zoom level.
+     * @param archive       the archive, which is created if needed.
+     * @param progress      the receiver of the progress, or null.
+     * @return              the number of tiles that were rendered.
+     * @throws IllegalArgumentException if there are too many queries,
+     *                      a starting stop does not exist or the zoom
+     *                      levels are invalid.
+     * @throws IOException  if the archive or the timetable cannot be read
+     *                      or written.
+     */
+    public long generate(List<Query> queries, PointWGS84 corner1, PointWGS84 corner2,
+            int minZoom, int maxZoom, Path archive, Progress progress) throws IOException {
+        if (queries.size() > TileArchive.MAX_LAYERS) {
+            throw new IllegalArgumentException("too many queries");
+        }
+        if ((minZoom < 0) || (minZoom > maxZoom) || (maxZoom > 20)) {
+            throw new IllegalArgumentException("invalid zoom levels");
+        }
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        List<Stop> stops = new ArrayList<Stop>();
+        for (Query q : queries) {
+            stops.add(stopNamed(snapshot, q.stopName));
+        }
+
+        long total = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            total += tileCount(zoom, corner1, corner2) * queries.size();
+        }
+        AtomicLong done = new AtomicLong();
+        AtomicLong rendered = new AtomicLong();
+        try (TileArchive.Writer writer = new TileArchive.Writer(archive)) {
+            for (int layer = 0; layer < queries.size(); layer++) {
+                Query q = queries.get(layer);
+                TileProvider provider = null;
+                for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+                    int[] r = tileRange(zoom, corner1, corner2);
+                    if ((provider == null) && (! containsAll(writer, layer, zoom, r))) {
+                        // the tree is only computed if some tile is missing
+                        FastestPathTree tree = snapshot.graphForDate(q.date)
+                                .fastestPaths(stops.get(layer), q.departureTime);
+                        provider = new IsochroneTileProvider(tree, colors, walkingSpeed,
+                                IsochroneTileProvider.Rendering.PIXELS);
+                    }
+                    TileTask task = new TileTask(writer, provider, layer, zoom,
+                            r[0], r[1], r[2], r[3], done, rendered, total, progress);
+                    try {
+                        pool.invoke(task);
+                    } catch (ArchiveFailure e) {
+                        throw e.getCause();
+                    }
+                }
+            }
+            writer.finish();
+        }
+        return rendered.get();
+    }
+
+    private static Stop stopNamed(TimeTableReloader.Snapshot snapshot, String name) {
+        for (Stop s : snapshot.timeTable().stops()) {
+            if (s.name().equals(name)) {
+                return s;
+            }
+        }
+        throw new IllegalArgumentException("unknown stop: " + name);
+    }
+
+    private static boolean containsAll(TileArchive.Writer writer, int layer, int zoom, int[] r) {
+        for (int x = r[0]; x <= r[2]; x++) {
+            for (int y = r[1]; y <= r[3]; y++) {
+                if (! writer.contains(layer, zoom, x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long tileCount(int zoom, PointWGS84 corner1, PointWGS84 corner2) {
+        int[] r = tileRange(zoom, corner1, corner2);
+        return (long) (r[2] - r[0] + 1) * (r[3] - r[1] + 1);
+    }
+
+    // the smallest and largest x and y coordinates of the tiles
+    private static int[] tileRange(int zoom, PointWGS84 corner1, PointWGS84 corner2) {
+        PointOSM p1 = corner1.toOSM(zoom);
+        PointOSM p2 = corner2.toOSM(zoom);
+        int max = (1 << zoom) - 1;
+        return new int[] {
+            clamp((int) Math.floor(Math.min(p1.x(), p2.x()) / 256), max),
+            clamp((int) Math.floor(Math.min(p1.y(), p2.y()) / 256), max),
+            clamp((int) Math.floor(Math.max(p1.x(), p2.x()) / 256), max),
+            clamp((int) Math.floor(Math.max(p1.y(), p2.y()) / 256), max) };
+    }
+
+    private static int clamp(int v, int max) {
+        return Math.max(0, Math.min(max, v));
+    }
+
+    // renders a rectangle of tiles, split in halves until it is small
+    @SuppressWarnings("serial")
+    private static final class TileTask extends RecursiveAction {
+        private final TileArchive.Writer writer;
+        private final TileProvider provider;
+        private final int layer;
+        private final int zoom;
+        private final int x0, y0, x1, y1;
+        private final AtomicLong done;
+        private final AtomicLong rendered;
+        private final long total;
+        private final Progress progress;
+
+        TileTask(TileArchive.Writer writer, TileProvider provider, int layer, int zoom,
+                int x0, int y0, int x1, int y1, AtomicLong done, AtomicLong rendered,
+                long total, Progress progress) {
+            this.writer = writer;
+            this.provider = provider;
+            this.layer = layer;
+            this.zoom = zoom;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.done = done;
+            this.rendered = rendered;
+            this.total = total;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            int width = x1 - x0 + 1;
+            int height = y1 - y0 + 1;
+            if ((long) width * height > TILES_PER_TASK) {
+                if (width >= height) {
+                    int xm = x0 + width / 2;
+                    invokeAll(part(x0, y0, xm - 1, y1), part(xm, y0, x1, y1));
+                } else {
+                    int ym = y0 + height / 2;
+                    invokeAll(part(x0, y0, x1, ym - 1), part(x0, ym, x1, y1));
+                }
+                return;
+            }
+            for (int x = x0; x <= x1; x++) {
+                for (int y = y0; y <= y1; y++) {
+                    if (! writer.contains(layer, zoom, x, y)) {
+                        try {
+                            byte[] png = IsochroneTileServer.encode(
+                                    provider.tileAt(zoom, x, y).image());
+                            writer.put(layer, zoom, x, y, png);
+                        } catch (IOException e) {
+                            throw new ArchiveFailure(e);
+                        }
+                        rendered.incrementAndGet();
+                    }
+                    long d = done.incrementAndGet();
+                    if (progress != null) {
+                        progress.progressed(d, total);
+                    }
+                }
+            }
+        }
+
+        private TileTask part(int x0, int y0, int x1, int y1) {
+            return new TileTask(writer, provider, layer, zoom, x0, y0, x1, y1,
+                    done, rendered, total, progress);
+        }
+    }
+
+    // carries an IO failure out of the pool
+    @SuppressWarnings("serial")
+    private static final class ArchiveFailure extends RuntimeException {
+        ArchiveFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Generates an archive.
+     *
+     * @param args  the archive, the smallest and largest zoom levels, the
+     *              latitude and longitude (in degrees) of two opposite
+     *              corners of the region, and the maps, each in the form
+     *              stop/YYYY-MM-DD/HH:MM, a time until 4:00 being one of
+     *              the night after the previous day.
+     * @throws IOException  if there is an IO problem.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 8) {
+            System.err.println("usage: PyramidGenerator archive minZoom maxZoom"
+                    + " lat1 lon1 lat2 lon2 stop/YYYY-MM-DD/HH:MM...");
+            System.exit(1);
+        }
+        PointWGS84 corner1 = new PointWGS84(Math.toRadians(Double.parseDouble(args[4])),
+                Math.toRadians(Double.parseDouble(args[3])));
+        PointWGS84 corner2 = new PointWGS84(Math.toRadians(Double.parseDouble(args[6])),
+                Math.toRadians(Double.parseDouble(args[5])));
+        List<Query> queries = new ArrayList<Query>();
+        for (int i = 7; i < args.length; i++) {
+            String[] parts = args[i].split("/");
+            String[] ymd = parts[1].split("-");
+            String[] hm = parts[2].split(":");
+            Date date = new Date(Integer.parseInt(ymd[2]), Integer.parseInt(ymd[1]),
+                    Integer.parseInt(ymd[0]));
+            int time = SecondsPastMidnight.fromHMS(Integer.parseInt(hm[0]),
+                    Integer.parseInt(hm[1]), 0);
+            // as in the application and the server
+            if (time <= SPM_THRESHOLD) {
+                time += SecondsPastMidnight.fromHMS(24, 0, 0);
+                date = date.relative(-1);
+            }
+            queries.add(new Query(parts[0], date, time));
+        }
+
+        TimeTableReloader reloader = new TimeTableReloader(
+                new ResourceTimeTableSource("/time-table/"), 5 * 60, 1.25);
+        PyramidGenerator generator = new PyramidGenerator(reloader,
+                IsochroneTileServer.defaultColors(), 1.25, new ForkJoinPool());
+        long rendered = generator.generate(queries, corner1, corner2,
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]), Paths.get(args[0]),
+                new Progress() {
+                    private final AtomicLong lastPercent = new AtomicLong(-1);
+
+                    @Override
+                    public void progressed(long done, long total) {
+                        long percent = 100 * done / total;
+                        long last = lastPercent.get();
+                        if ((percent > last) && lastPercent.compareAndSet(last, percent)) {
+                            System.out.println(percent + "% (" + done + "/" + total + ")");
+                        }
+                    }
+                });
+        System.out.println(rendered + " tiles rendered");
+    }
+}
@@ -1,7 +1,14 @@
 package ch.epfl.isochrone.tiledmap;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 /**
- * Provides caching for a tile provider.
+ * Provides caching for a tile provider. When several threads ask for the
+ * same tile while it is not cached yet, it is only obtained once from
+ * the provider, and the other threads wait for it.
  *
  * @author Jakob Bauer (223590)
  */
@@ -9,6 +16,11 @@ public final class CachedTileProvider implements TileProvider {
 
     private final TileCache cache;
     private final TileProvider tileProvider;
+    // set in the high bits of the keys, to share a cache between providers
+    private final long keyPrefix;
+    // the tiles being obtained from the provider, by packed coordinates
+    private final ConcurrentHashMap<Long, TileTask> inFlight =
+            new ConcurrentHashMap<Long, TileTask>();
 
     /**
      * Class constructor.
@@ -16,21 +28,111 @@ public final class CachedTileProvider implements TileProvider {
      * @param tileProvider  the tile provider to be cached.
      */
     public CachedTileProvider(TileProvider tileProvider) {
+        this(tileProvider, new TileCache());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param tileProvider  the tile provider to be cached.
+     * @param cache         the cache in which the tiles are kept.
+     */
+    public CachedTileProvider(TileProvider tileProvider, TileCache cache) {
+        this(tileProvider, cache, 0);
+    }
+
+    CachedTileProvider(TileProvider tileProvider, TileCache cache, long keyPrefix) {
         this.tileProvider = tileProvider;
-        this.cache = new TileCache();
+        this.cache = cache;
+        this.keyPrefix = keyPrefix;
     }
 
+    /**
+     * Returns the cache in which the tiles are kept.
+     *
+     * @return  the cache of the provider.
+     */
+    public TileCache cache() { return cache; }
+
     /* (non-Javadoc)
      * @see ch.epfl.isochrone.tiledmap.TileProvider#tileAt(int, int, int)
      */
     @Override
     public Tile tileAt(int zoom, int x, int y) {
-        if (cache.containsKey(zoom, x, y)) {
-            return cache.get(zoom, x, y);
-        } else {
-            Tile tile = tileProvider.tileAt(zoom, x, y);
-            cache.put(zoom, x, y, tile);
+        TileCache.checkCoordinates(zoom, x, y);
+        long key = keyPrefix | TileCache.packCoordinates(zoom, x, y);
+        // a single lookup: the tile could be evicted between a containsKey
+        // and a get
+        Tile tile = cache.get(key);
+        if (tile != null) {
             return tile;
         }
+
+        TileTask task = new TileTask(zoom, x, y);
+        TileTask running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            return result(running);
+        }
+        try {
+            // the tile could have been cached since the first lookup
+            tile = cache.get(key);
+            if (tile != null) {
+                task.complete(tile);
+                return tile;
+            }
+            task.run();
+            // failures are not cached: the next request tries again
+            tile = result(task);
+            cache.put(key, tile);
+            return tile;
+        } finally {
+            // only removed once the tile is cached, so that no request
+            // obtains it again in between
+            inFlight.remove(key, task);
+        }
+    }
+
+    // waits for the tile even if the thread is interrupted, as tileAt
+    // cannot report it, and rethrows the failure of the provider
+    private static Tile result(FutureTask<Tile> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class TileTask extends FutureTask<Tile> {
+        TileTask(final int zoom, final int x, final int y) {
+            super(new Callable<Tile>() {
+                @Override
+                public Tile call() {
+                    return tileProvider.tileAt(zoom, x, y);
+                }
+            });
+        }
+
+        // for a tile that was cached in the meantime
+        void complete(Tile tile) {
+            set(tile);
+        }
     }
 }
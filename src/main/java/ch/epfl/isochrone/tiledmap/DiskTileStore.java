@@ -0,0 +1,264 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stores encoded tile images in a directory, in files named
+ * zoom/x/y.png, so that they survive the application. The store is
+ * bounded by the total size of its files, and evicts the least recently
+ * used tiles first. Tiles can also expire a given time after they were
+ * stored; expired tiles are kept until they are replaced or evicted.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class DiskTileStore {
+
+    private static final String EXTENSION = ".png";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    // in access order, from the least recently used tile
+    private final LongHashMap<Entry> entries = new LongHashMap<Entry>(1024);
+    private long bytes;
+
+    /**
+     * Class constructor for tiles that do not expire.
+     *
+     * @param directory     the directory in which the tiles are stored,
+     *                      which is created if needed.
+     * @param maxBytes      the maximum total size of the stored tiles.
+     * @throws IOException  if the directory cannot be created or read.
+     */
+    public DiskTileStore(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, 0);
+    }
+
+    /**
+     * Class constructor. The tiles already in the directory are taken
+     * over, from the oldest to the most recent one.
+     *
+     * @param directory     the directory in which the tiles are stored,
+     *                      which is created if needed.
+     * @param maxBytes      the maximum total size of the stored tiles.
+     * @param maxAgeMillis  the time (in milliseconds) after which a tile
+     *                      expires, or 0 if tiles do not expire.
+     * @throws IllegalArgumentException if the maximum size is not positive
+     *                      or the maximum age is negative.
+     * @throws IOException  if the directory cannot be created or read.
+     */
+    public DiskTileStore(Path directory, long maxBytes, long maxAgeMillis)
+            throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid maximum size");
+        }
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("invalid maximum age");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(directory);
+        for (Entry e : storedEntries()) {
+            entries.put(e.key, e);
+            bytes += e.bytes;
+        }
+        for (Entry e : evictIfNeeded()) {
+            Files.deleteIfExists(path(e.key));
+        }
+    }
+
+    /**
+     * Returns the encoded image of the given tile, or null if the tile
+     * is not stored or has expired.
+     *
+     * @param zoom          the zoom level.
+     * @param x             the x coordinate.
+     * @param y             the y coordinate.
+     * @return              the encoded image or null.
+     * @throws IOException  if the file of the tile cannot be read.
+     */
+    public byte[] get(int zoom, int x, int y) throws IOException {
+        return read(zoom, x, y, false);
+    }
+
+    /**
+     * Returns the encoded image of the given tile even if it has expired,
+     * or null if the tile is not stored. An expired tile is kept until it
+     * is replaced or evicted, so that it can be used when a fresh one
+     * cannot be obtained.
+     *
+     * @param zoom          the zoom level.
+     * @param x             the x coordinate.
+     * @param y             the y coordinate.
+     * @return              the encoded image or null.
+     * @throws IOException  if the file of the tile cannot be read.
+     */
+    public byte[] getStale(int zoom, int x, int y) throws IOException {
+        return read(zoom, x, y, true);
+    }
+
+    private byte[] read(int zoom, int x, int y, boolean stale) throws IOException {
+        long key = TileCache.packCoordinates(zoom, x, y);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e == null) {
+                return null;
+            }
+            if (! stale && (maxAgeMillis > 0)
+                    && (System.currentTimeMillis() - e.time > maxAgeMillis)) {
+                return null;
+            }
+        }
+        try {
+            return Files.readAllBytes(path(key));
+        } catch (NoSuchFileException ex) {
+            // deleted by another thread or outside of the application
+            synchronized (this) {
+                remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores the encoded image of the given tile, replacing the one that
+     * might already be stored (even expired), and evicts tiles if the store is full.
+     *
+     * @param zoom          the zoom level.
+     * @param x             the x coordinate.
+     * @param y             the y coordinate.
+     * @param image         the encoded image.
+     * @throws IOException  if the file of the tile cannot be written.
+     */
+    public void put(int zoom, int x, int y, byte[] image) throws IOException {
+        long key = TileCache.packCoordinates(zoom, x, y);
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        // the file is written completely before it appears under its name
+        Path temporary = Files.createTempFile(path.getParent(), null, TEMPORARY_EXTENSION);
+        try {
+            Files.write(temporary, image);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        List<Entry> victims;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, new Entry(key, image.length, System.currentTimeMillis()));
+            bytes += image.length;
+            victims = evictIfNeeded();
+        }
+        for (Entry e : victims) {
+            Files.deleteIfExists(path(e.key));
+        }
+    }
+
+    /**
+     * Returns the total size of the stored tiles.
+     *
+     * @return  the size of the stored tiles in bytes.
+     */
+    public synchronized long bytes() { return bytes; }
+
+    /**
+     * Returns the number of stored tiles.
+     *
+     * @return  the number of stored tiles.
+     */
+    public synchronized int size() { return entries.size(); }
+
+    private void remove(long key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            bytes -= e.bytes;
+        }
+    }
+
+    // the most recent tile is kept even if it is larger than the store
+    private List<Entry> evictIfNeeded() {
+        List<Entry> victims = new ArrayList<Entry>();
+        while ((bytes > maxBytes) && (entries.size() > 1)) {
+            Entry e = entries.remove(entries.eldestKey());
+            bytes -= e.bytes;
+            victims.add(e);
+        }
+        return victims;
+    }
+
+    private Path path(long key) {
+        int zoom = (int) (key >>> 42);
+        int x = (int) (key >>> 21) & 0x1FFFFF;
+        int y = (int) key & 0x1FFFFF;
+        return directory.resolve(Integer.toString(zoom))
+                .resolve(Integer.toString(x))
+                .resolve(y + EXTENSION);
+    }
+
+    private List<Entry> storedEntries() throws IOException {
+        final List<Entry> stored = new ArrayList<Entry>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_EXTENSION)) {
+                    // left over by an interrupted put
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                Path relative = directory.relativize(file);
+                if ((relative.getNameCount() != 3) || ! name.endsWith(EXTENSION)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    int zoom = Integer.parseInt(relative.getName(0).toString());
+                    int x = Integer.parseInt(relative.getName(1).toString());
+                    int y = Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+                    if ((zoom >= 0) && (zoom <= 20) && (x >= 0) && (y >= 0)
+                            && (x <= 1 << 20) && (y <= 1 << 20)) {
+                        stored.add(new Entry(TileCache.packCoordinates(zoom, x, y),
+                                (int) attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (NumberFormatException e) {
+                    // not a tile
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(stored, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.time, e2.time);
+            }
+        });
+        return stored;
+    }
+
+    private static final class Entry {
+        final long key;
+        final int bytes;
+        // the time at which the tile was stored, in milliseconds
+        final long time;
+
+        Entry(long key, int bytes, long time) {
+            this.key = key;
+            this.bytes = bytes;
+            this.time = time;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package ch.epfl.isochrone.tiledmap;
 
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Transformer of tile provider.
@@ -9,6 +16,7 @@ import java.awt.image.BufferedImage;
  */
 public abstract class FilteringTileProvider implements TileProvider {
 
+    private final static int CHUNK_SIZE = 4096;
     private TileProvider providerToFilter;
 
     /**
@@ -28,22 +36,151 @@ public abstract class FilteringTileProvider implements TileProvider {
      */
     abstract public int transformARGB(int argb);
 
-    /* (non-Javadoc)
+    /**
+     * Transforms a range of pixels of a tile in place. Subclasses can
+     * override this method if they can transform an array faster than
+     * pixel by pixel; the result must be the same as the one of
+     * transformARGB.
+     *
+     * @param pixels    the pixels (in ARGB format) to be transformed.
+     * @param from      the index of the first pixel to be transformed.
+     * @param to        the index following the last pixel to be transformed.
+     */
+    protected void transformPixels(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = transformARGB(pixels[i]);
+        }
+    }
+
+    /**
+     * Returns the alpha value that this filter gives to every pixel, if
+     * the filter does nothing else than replacing the alpha value of the
+     * pixels by a constant. Such a filter is applied to opaque tiles when
+     * they are drawn, instead of being applied to their pixels.
+     *
+     * @return  the alpha value (between 0 and 1) given to every pixel,
+     *          or a negative value if the filter does not only replace
+     *          the alpha value by a constant.
+     */
+    protected double constantAlpha() {
+        return -1;
+    }
+
+    /**
+     * Returns the tile of the filtered provider, transformed by this
+     * filter. If the filtered provider is itself a filter, the whole
+     * chain of filters is applied in a single pass over a single image,
+     * without creating the intermediate tiles.
+     *
      * @see ch.epfl.isochrone.tiledmap.TileProvider#tileAt(int, int, int)
      */
     @Override
-    public Tile tileAt(int zoom, int x, int y) {
+    public final Tile tileAt(int zoom, int x, int y) {
         // FilteringTileProvider doit absolument creer une nouvelle image
         // plutot que de modifier celle du fournisseur qu'il transforme!
-        BufferedImage image = providerToFilter.tileAt(zoom, x, y).image();
+        List<FilteringTileProvider> filters = new ArrayList<FilteringTileProvider>();
+        TileProvider source = this;
+        while (source instanceof FilteringTileProvider) {
+            FilteringTileProvider f = (FilteringTileProvider) source;
+            filters.add(f);
+            source = f.providerToFilter;
+        }
+        // from the innermost filter to this one
+        Collections.reverse(filters);
+
+        Tile tile = source.tileAt(zoom, x, y);
+        BufferedImage image = tile.image();
+        if (UniformTiles.isUniform(image) && (tile.opacity() == 1)) {
+            // a uniform tile stays uniform, and its image can be shared
+            int argb = image.getRGB(0, 0);
+            for (FilteringTileProvider f : filters) {
+                argb = f.transformARGB(argb);
+            }
+            return new Tile(zoom, x, y, UniformTiles.image(argb), 1, tile.expirationTime());
+        }
+
+        // the filters that only set the transparency of an opaque image
+        // are applied when drawing it
+        double opacity = tile.opacity();
+        int first = 0;
+        if (image.getTransparency() == Transparency.OPAQUE) {
+            while ((first < filters.size()) && (filters.get(first).constantAlpha() >= 0)) {
+                opacity = filters.get(first).constantAlpha();
+                first++;
+            }
+        }
+        if (first == filters.size()) {
+            return new Tile(zoom, x, y, image, opacity, tile.expirationTime());
+        }
+
+        BufferedImage result = argbCopy(new Tile(zoom, x, y, image, opacity));
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        // all the filters are applied to a chunk of pixels before going
+        // on to the next one, which therefore stays in the cache
+        for (int from = 0; from < pixels.length; from += CHUNK_SIZE) {
+            int to = Math.min(from + CHUNK_SIZE, pixels.length);
+            for (int k = first; k < filters.size(); k++) {
+                filters.get(k).transformPixels(pixels, from, to);
+            }
+        }
+        return new Tile(zoom, x, y, result, 1, tile.expirationTime());
+    }
+
+    /**
+     * Returns a new image of type TYPE_INT_ARGB with the pixels of the
+     * given tile, including the opacity with which it would be drawn.
+     *
+     * @param tile  the tile to be copied.
+     * @return      a copy of the image of the tile in ARGB format.
+     */
+    static BufferedImage argbCopy(Tile tile) {
+        BufferedImage image = tile.image();
         int width = image.getWidth();
         int height = image.getHeight();
-        BufferedImage result = new BufferedImage(width, height, image.getType());
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                result.setRGB(i, j, transformARGB(image.getRGB(i, j)));
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int[] source = packedPixels(image);
+        if (source != null) {
+            System.arraycopy(source, 0, pixels, 0, pixels.length);
+            if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+                // TYPE_INT_RGB, whose alpha bits are undefined
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] |= 0xFF000000;
+                }
             }
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        if (tile.opacity() < 1) {
+            int alphaInt = (int) (255 * tile.opacity());
+            for (int i = 0; i < pixels.length; i++) {
+                int a = ((pixels[i] >>> 24) * alphaInt) / 255;
+                pixels[i] = (pixels[i] & 0x00FFFFFF) | (a << 24);
+            }
+        }
+        return result;
+    }
+
+    // returns the array backing the pixels of the image if they are stored
+    // as one int per pixel, row after row, and null otherwise
+    private static int[] packedPixels(BufferedImage image) {
+        int type = image.getType();
+        if ((type != BufferedImage.TYPE_INT_ARGB) && (type != BufferedImage.TYPE_INT_RGB)) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if ((raster.getParent() != null)
+                || (raster.getSampleModelTranslateX() != 0)
+                || (raster.getSampleModelTranslateY() != 0)
+                || (! (raster.getSampleModel() instanceof SinglePixelPackedSampleModel))
+                || (((SinglePixelPackedSampleModel) raster.getSampleModel())
+                        .getScanlineStride() != image.getWidth())) {
+            return null;
+        }
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if ((buffer.getNumBanks() != 1) || (buffer.getOffset() != 0)) {
+            return null;
         }
-        return new Tile(zoom, x, y, result);
+        return buffer.getData();
     }
 }
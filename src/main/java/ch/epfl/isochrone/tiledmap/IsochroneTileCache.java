@@ -0,0 +1,288 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Graph;
+import ch.epfl.isochrone.timetable.Stop;
+
+/**
+ * A cache of isochrone tiles shared by the successive isochrone maps,
+ * so that the tiles of a map that was already displayed are not rendered
+ * again. The tiles are identified by their coordinates and by the query
+ * that produced the map: the graph, the starting stop, the departure
+ * time, the color table and the walking speed.
+ *
+ * When the query changes but not the graph, the starting stop, the color
+ * table or the walking speed, only the tiles reached by the stops whose
+ * travel time changed are rendered again; the others are taken from the
+ * previous query.
+ *
+ * With downsampling, a tile whose four children (at the next zoom level)
+ * are in the cache is built from them instead of being rendered, so that
+ * zooming out after exploring a region renders nothing.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class IsochroneTileCache {
+
+    // the key of a tile is its packed coordinates (47 bits), preceded
+    // by the number of its query
+    private static final int QUERY_SHIFT = 47;
+    private static final int MAX_QUERY_NUMBERS = 1 << 16;
+    private static final int MAX_QUERIES = 1024;
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_ZOOM = 20;
+
+    private final long maxBytes;
+    private final boolean downsampling;
+    private Epoch epoch;
+    // the numbers of the most recent queries
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<Query, Integer> queryNumbers =
+        new LinkedHashMap<Query, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Query, Integer> e) {
+                return size() > MAX_QUERIES;
+            }
+        };
+    private int nextQueryNumber;
+    // the query of the last provider, whose tiles can be reused
+    private Query lastQuery;
+    private FastestPathTree lastTree;
+    private int lastNumber;
+
+    /**
+     * Class constructor for a cache without downsampling.
+     *
+     * @param maxBytes  the maximum number of bytes of the cached tiles.
+     */
+    public IsochroneTileCache(long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param maxBytes      the maximum number of bytes of the cached tiles.
+     * @param downsampling  true if the tiles whose children are cached are
+     *                      built from them.
+     */
+    public IsochroneTileCache(long maxBytes, boolean downsampling) {
+        this.maxBytes = maxBytes;
+        this.downsampling = downsampling;
+        this.epoch = new Epoch(maxBytes);
+    }
+
+    /**
+     * Returns a provider caching the tiles of the given renderer in this
+     * cache. The tiles rendered for an earlier query with the same graph,
+     * starting stop, departure time, color table and walking speed are
+     * reused. The renderer must therefore only depend on these.
+     *
+     * @param renderer      the provider of the isochrone tiles.
+     * @param graph         the graph in which the fastest paths were computed.
+     * @param tree          the fastest-path tree drawn by the renderer.
+     * @param colors        the colors of the isochrones.
+     * @param walkingSpeed  the walking speed in meters per second.
+     * @return              a provider of the tiles of the renderer.
+     */
+    public synchronized TileProvider cachedProvider(TileProvider renderer, Graph graph,
+            FastestPathTree tree, ColorTable colors, double walkingSpeed) {
+        Query query = new Query(graph, tree.startingStop(), tree.startingTime(),
+                colors, walkingSpeed);
+        Integer number = queryNumbers.get(query);
+        if (number == null) {
+            if (nextQueryNumber == MAX_QUERY_NUMBERS) {
+                // the numbers are reused in a new cache, as the providers
+                // of the old ones can still be in use: these keep their
+                // cache, in which no new query is numbered, and stop
+                // caching their tiles
+                epoch.retired = true;
+                epoch.cache.clear();
+                epoch = new Epoch(maxBytes);
+                queryNumbers.clear();
+                nextQueryNumber = 0;
+                lastQuery = null;
+            }
+            number = nextQueryNumber++;
+            queryNumbers.put(query, number);
+        }
+        long prefix = (long) number << QUERY_SHIFT;
+        TileCache cache = epoch.cache;
+        TileProvider provider = downsampling
+                ? new DownsamplingTileProvider(renderer, cache, prefix)
+                : renderer;
+        if ((lastQuery != null) && (! lastQuery.equals(query)) && lastQuery.sameMap(query)) {
+            Set<Stop> changed = tree.changedStops(lastTree);
+            int maxTime = (colors.numberOfTranches() - 1) * colors.duration();
+            provider = new ReusingTileProvider(provider, cache, (long) lastNumber << QUERY_SHIFT,
+                    new StopIndex(lastTree, changed, maxTime, walkingSpeed),
+                    new StopIndex(tree, changed, maxTime, walkingSpeed));
+        }
+        lastQuery = query;
+        lastTree = tree;
+        lastNumber = number;
+        return new EpochTileProvider(epoch, new CachedTileProvider(provider, cache, prefix),
+                renderer);
+    }
+
+    /**
+     * Returns the cache in which the tiles are kept, for its counters. It
+     * is replaced by a new one whenever the numbers of the queries have
+     * to be reused, i.e. after 65536 distinct queries.
+     *
+     * @return  the underlying tile cache.
+     */
+    public synchronized TileCache cache() { return epoch.cache; }
+
+    // the cache of the queries numbered since the numbers were last reused
+    private static final class Epoch {
+        private final TileCache cache;
+        // true once the numbers have been reused in another cache
+        private volatile boolean retired;
+
+        Epoch(long maxBytes) {
+            this.cache = new TileCache(maxBytes, TileCache.Eviction.LRU,
+                    TileCache.Storage.RUN_LENGTH);
+        }
+    }
+
+    // caches the tiles of a provider until its epoch is retired, and then
+    // only renders them
+    private static final class EpochTileProvider implements TileProvider {
+        private final Epoch epoch;
+        private final TileProvider cached;
+        private final TileProvider renderer;
+
+        EpochTileProvider(Epoch epoch, TileProvider cached, TileProvider renderer) {
+            this.epoch = epoch;
+            this.cached = cached;
+            this.renderer = renderer;
+        }
+
+        @Override
+        public Tile tileAt(int zoom, int x, int y) {
+            return epoch.retired ? renderer.tileAt(zoom, x, y) : cached.tileAt(zoom, x, y);
+        }
+    }
+
+    // renders only the tiles that the changed stops reach, before or after
+    // the change, and takes the others from the cache of the previous query
+    private static final class ReusingTileProvider implements TileProvider {
+        private final TileProvider renderer;
+        private final TileCache cache;
+        private final long previousPrefix;
+        private final StopIndex changedBefore;
+        private final StopIndex changedAfter;
+
+        ReusingTileProvider(TileProvider renderer, TileCache cache, long previousPrefix,
+                StopIndex changedBefore, StopIndex changedAfter) {
+            this.renderer = renderer;
+            this.cache = cache;
+            this.previousPrefix = previousPrefix;
+            this.changedBefore = changedBefore;
+            this.changedAfter = changedAfter;
+        }
+
+        @Override
+        public Tile tileAt(int zoom, int x, int y) {
+            double scale = 1 << zoom;
+            double x0 = x / scale * TILE_SIZE, y0 = y / scale * TILE_SIZE;
+            double x1 = (x + 1) / scale * TILE_SIZE, y1 = (y + 1) / scale * TILE_SIZE;
+            if ((changedBefore.stopsIntersecting(x0, y0, x1, y1).length == 0)
+                    && (changedAfter.stopsIntersecting(x0, y0, x1, y1).length == 0)) {
+                Tile tile = cache.get(previousPrefix | TileCache.packCoordinates(zoom, x, y));
+                if (tile != null) {
+                    return tile;
+                }
+            }
+            return renderer.tileAt(zoom, x, y);
+        }
+    }
+
+    // builds the tiles whose four children are cached from them, and
+    // renders the others
+    private static final class DownsamplingTileProvider implements TileProvider {
+        private final TileProvider renderer;
+        private final TileCache cache;
+        private final long prefix;
+
+        DownsamplingTileProvider(TileProvider renderer, TileCache cache, long prefix) {
+            this.renderer = renderer;
+            this.cache = cache;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Tile tileAt(int zoom, int x, int y) {
+            if (zoom < MAX_ZOOM) {
+                long[] keys = new long[4];
+                boolean cached = true;
+                for (int k = 0; cached && (k < 4); k++) {
+                    keys[k] = prefix | TileCache.packCoordinates(zoom + 1,
+                            2 * x + (k % 2), 2 * y + (k / 2));
+                    cached = cache.containsKey(keys[k]);
+                }
+                Tile[] children = new Tile[4];
+                for (int k = 0; cached && (k < 4); k++) {
+                    // a child could have been evicted in the meantime
+                    children[k] = cache.get(keys[k]);
+                    cached = (children[k] != null);
+                }
+                Tile tile = cached ? TileDownsampler.downsample(zoom, x, y, children) : null;
+                if (tile != null) {
+                    return tile;
+                }
+            }
+            return renderer.tileAt(zoom, x, y);
+        }
+    }
+
+    // the graph and the color table are compared by identity
+    private static final class Query {
+        private final Graph graph;
+        private final Stop startingStop;
+        private final int startingTime;
+        private final ColorTable colors;
+        private final double walkingSpeed;
+
+        Query(Graph graph, Stop startingStop, int startingTime,
+                ColorTable colors, double walkingSpeed) {
+            this.graph = graph;
+            this.startingStop = startingStop;
+            this.startingTime = startingTime;
+            this.colors = colors;
+            this.walkingSpeed = walkingSpeed;
+        }
+
+        // true if the maps of both queries only differ by the travel times
+        boolean sameMap(Query that) {
+            return (graph == that.graph)
+                    && startingStop.equals(that.startingStop)
+                    && (colors == that.colors)
+                    && (Double.compare(walkingSpeed, that.walkingSpeed) == 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Query)) {
+                return false;
+            }
+            Query that = (Query) o;
+            return sameMap(that) && (startingTime == that.startingTime);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(graph);
+            h = 31 * h + startingStop.hashCode();
+            h = 31 * h + startingTime;
+            h = 31 * h + System.identityHashCode(colors);
+            long bits = Double.doubleToLongBits(walkingSpeed);
+            return 31 * h + (int) (bits ^ (bits >>> 32));
+        }
+    }
+}
@@ -1,14 +1,16 @@
 package ch.epfl.isochrone.tiledmap;
 
-import ch.epfl.isochrone.geo.PointOSM;
-import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.timetable.CancellationToken;
 import ch.epfl.isochrone.timetable.FastestPathTree;
-import ch.epfl.isochrone.timetable.Stop;
 
 import java.awt.Graphics2D;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
-import java.util.Set;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
 
 /**
  * Provides tiles for isochrone maps.
@@ -17,10 +19,45 @@ import java.util.Set;
  */
 public final class IsochroneTileProvider implements TileProvider {
 
+    /**
+     * The ways in which the isochrone tiles can be rendered.
+     */
+    public enum Rendering {
+        /**
+         * Draws one disc per stop and tranche, from the last tranche to
+         * the first one.
+         */
+        DISCS,
+        /**
+         * Computes the travel time of every pixel, as the minimum over the
+         * nearby stops of the arrival time plus the walking time, and maps
+         * it to a color through a lookup table.
+         */
+        PIXELS
+    }
+
     private final static int TILE_SIZE = 256;
+    private final static int BLOCK_SIZE = 16;
+    // the one used by PointWGS84
+    private final static double EARTH_RADIUS = 6378137;
     private final FastestPathTree tree;
     private final ColorTable colors;
     private final double walkingSpeed;
+    private final Rendering rendering;
+    private final CancellationToken token;
+    private final StopIndex index;
+    private final int maxTime;
+    // the color of every travel time in [0, maxTime], in seconds
+    private final int[] colorLookup;
+    // TYPE_INT_RGB if all the colors are opaque, so that filters that
+    // only change the transparency can be applied when drawing the tiles
+    private final int imageType;
+    // if all the colors are opaque, the tiles have indexed colors, which
+    // take a quarter of the bytes and can be compressed by caches; the
+    // palette is shared by all the tiles
+    private final IndexColorModel palette;
+    // the index in the palette of the color of every travel time
+    private final byte[] indexLookup;
 
     /**
      * Class constructor.
@@ -30,12 +67,73 @@ public final class IsochroneTileProvider implements TileProvider {
      * @param walkingSpeed  the walking speed in meters per second.
      */
     public IsochroneTileProvider(FastestPathTree tree, ColorTable colors, double walkingSpeed) {
+        this(tree, colors, walkingSpeed, Rendering.DISCS);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param tree          the fastest-path tree.
+     * @param colors        the colors for the fastest-path tree.
+     * @param walkingSpeed  the walking speed in meters per second.
+     * @param rendering     the way in which the tiles are rendered.
+     */
+    public IsochroneTileProvider(FastestPathTree tree, ColorTable colors,
+            double walkingSpeed, Rendering rendering) {
+        this(tree, colors, walkingSpeed, rendering, new CancellationToken());
+    }
+
+    /**
+     * Class constructor. Once the token is cancelled, the renderings in
+     * progress are abandoned, and tileAt throws a CancellationException.
+     *
+     * @param tree          the fastest-path tree.
+     * @param colors        the colors for the fastest-path tree.
+     * @param walkingSpeed  the walking speed in meters per second.
+     * @param rendering     the way in which the tiles are rendered.
+     * @param token         the token cancelling the renderings.
+     */
+    public IsochroneTileProvider(FastestPathTree tree, ColorTable colors,
+            double walkingSpeed, Rendering rendering, CancellationToken token) {
         if (walkingSpeed <= 0) {
             throw new IllegalArgumentException("invalid walking speed");
         }
         this.tree = tree;
         this.colors = colors;
         this.walkingSpeed = walkingSpeed;
+        this.rendering = rendering;
+        this.token = token;
+        this.maxTime = (colors.numberOfTranches() - 1) * colors.duration();
+        this.index = new StopIndex(tree, maxTime, walkingSpeed);
+        this.colorLookup = new int[maxTime + 1];
+        boolean opaque = true;
+        for (int t = 0; t <= maxTime; t++) {
+            colorLookup[t] = colors.color(t / colors.duration()).getRGB();
+            opaque &= (colorLookup[t] >>> 24) == 0xFF;
+        }
+        this.imageType = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+        int[] distinct = new int[256];
+        int n = 0;
+        byte[] indices = new byte[maxTime + 1];
+        boolean indexed = opaque;
+        for (int t = 0; indexed && (t <= maxTime); t++) {
+            int i = 0;
+            while ((i < n) && (distinct[i] != colorLookup[t])) {
+                i++;
+            }
+            if (i == n) {
+                if (n == distinct.length) {
+                    indexed = false;
+                    break;
+                }
+                distinct[n++] = colorLookup[t];
+            }
+            indices[t] = (byte) i;
+        }
+        this.palette = indexed ? new IndexColorModel(8, n, distinct, 0, false, -1,
+                DataBuffer.TYPE_BYTE) : null;
+        this.indexLookup = indexed ? indices : null;
     }
 
     /* (non-Javadoc)
@@ -43,7 +141,34 @@ public final class IsochroneTileProvider implements TileProvider {
      */
     @Override
     public Tile tileAt(int zoom, int x, int y) {
-        BufferedImage i = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        token.throwIfCancelled();
+        // only the stops whose largest disc reaches the tile are drawn
+        double scale = 1 << zoom;
+        int[] stops = index.stopsIntersecting(x / scale * TILE_SIZE,
+                y / scale * TILE_SIZE, (x + 1) / scale * TILE_SIZE,
+                (y + 1) / scale * TILE_SIZE);
+
+        if (stops.length == 0) {
+            // the tile only shows the background, whose image is shared
+            return new Tile(zoom, x, y, UniformTiles.image(colorLookup[maxTime]));
+        }
+        double distanceInMeters = tileHeightInMeters(zoom, x, y);
+
+        BufferedImage i;
+        if (rendering == Rendering.PIXELS) {
+            i = renderPixels(zoom, x, y, stops, distanceInMeters);
+        } else {
+            i = renderDiscs(zoom, x, y, stops, distanceInMeters);
+            if (palette != null) {
+                i = indexed(i);
+            }
+        }
+        return new Tile(zoom, x, y, i);
+    }
+
+    private BufferedImage renderDiscs(int zoom, int x, int y, int[] stops,
+            double distanceInMeters) {
+        BufferedImage i = new BufferedImage(TILE_SIZE, TILE_SIZE, imageType);
         Graphics2D g = i.createGraphics();
 
         // set background (i.e. last color in ColorTable)
@@ -51,12 +176,6 @@ public final class IsochroneTileProvider implements TileProvider {
         g.fillRect(0, 0, i.getWidth(), i.getHeight());
 
         int duration = colors.duration();
-        Set<Stop> stops = tree.stops();
-        int startingTime = tree.startingTime();
-
-        PointWGS84 p1 = (new PointOSM(zoom, tileToOSM(x), tileToOSM(y))).toWGS84();
-        PointWGS84 p2 = (new PointOSM(zoom, tileToOSM(x), tileToOSM(y + 1))).toWGS84();
-        double distanceInMeters = p1.distanceTo(p2);
 
         // pour chaque arret atteignable A :
         //      T = M - (H(A) - Hd)
@@ -67,20 +186,172 @@ public final class IsochroneTileProvider implements TileProvider {
         // (T : temps de marche restant a disposition apres etre arrive a l'arret A)
         // (il faut repeter ce algorithme pour chaque tranche de temps, en allant
         // de la derniere a la premiere! (sinon on perd les couches deja dessiner))
-        for (int j = colors.numberOfTranches() - 1; j > 0 ; j--) {
-            for (Stop s : stops) {
-                int T = j * duration - (tree.arrivalTime(s) - startingTime);
-                if (T > 0) {
-                    double radius = T * walkingSpeed / distanceInMeters * i.getHeight();
-                    g.setColor(colors.color(j - 1));
-                    PointOSM positionOSM = s.position().toOSM(zoom);
-                    double xCenter = (positionOSM.x() - tileToOSM(x));
-                    double yCenter = (positionOSM.y() - tileToOSM(y));
-                    g.fill(new Ellipse2D.Double(xCenter - radius, yCenter - radius, 2 * radius, 2 * radius));
+        double[] xCenters = new double[stops.length];
+        double[] yCenters = new double[stops.length];
+        centers(zoom, x, y, stops, xCenters, yCenters);
+        try {
+            for (int j = colors.numberOfTranches() - 1; j > 0 ; j--) {
+                token.throwIfCancelled();
+                for (int n = 0; n < stops.length; n++) {
+                    int T = j * duration - index.elapsedTime(stops[n]);
+                    if (T > 0) {
+                        double radius = T * walkingSpeed / distanceInMeters * i.getHeight();
+                        g.setColor(colors.color(j - 1));
+                        g.fill(new Ellipse2D.Double(xCenters[n] - radius, yCenters[n] - radius,
+                                2 * radius, 2 * radius));
+                    }
                 }
             }
+        } finally {
+            g.dispose();
         }
-        return new Tile(zoom, x, y, i);
+        return i;
+    }
+
+    private BufferedImage renderPixels(int zoom, int x, int y, int[] stops,
+            double distanceInMeters) {
+        int[] times = new int[TILE_SIZE * TILE_SIZE];
+        Arrays.fill(times, maxTime);
+        double secondsPerPixel = distanceInMeters / TILE_SIZE / walkingSpeed;
+        double pixelsPerSecond = 1 / secondsPerPixel;
+
+        // the indices of the stops are ordered by cell, not by time; stops
+        // reached early are drawn first, so that most of the pixels of the
+        // later ones are rejected without computing their distance
+        long[] order = new long[stops.length];
+        for (int k = 0; k < stops.length; k++) {
+            order[k] = ((long) index.elapsedTime(stops[k]) << 32) | stops[k];
+        }
+        Arrays.sort(order);
+
+        // the largest travel time of every block of pixels, which allows
+        // to skip the blocks in which a stop cannot improve any pixel
+        int blocks = TILE_SIZE / BLOCK_SIZE;
+        int[] blockMax = new int[blocks * blocks];
+        Arrays.fill(blockMax, maxTime);
+
+        double scale = 1 << zoom;
+        for (long o : order) {
+            token.throwIfCancelled();
+            int k = (int) o;
+            int elapsed = index.elapsedTime(k);
+            double xCenter = index.x(k) * scale - tileToOSM(x);
+            double yCenter = index.y(k) * scale - tileToOSM(y);
+            double radius = (maxTime - elapsed) * pixelsPerSecond;
+
+            int b0 = Math.max(0, (int) Math.floor((xCenter - radius) / BLOCK_SIZE));
+            int b1 = Math.min(blocks - 1, (int) Math.floor((xCenter + radius) / BLOCK_SIZE));
+            int c0 = Math.max(0, (int) Math.floor((yCenter - radius) / BLOCK_SIZE));
+            int c1 = Math.min(blocks - 1, (int) Math.floor((yCenter + radius) / BLOCK_SIZE));
+            for (int c = c0; c <= c1; c++) {
+                for (int b = b0; b <= b1; b++) {
+                    int block = c * blocks + b;
+                    // pixels are sampled at their center, as when filling a shape
+                    double dx = xCenter - Math.max(b * BLOCK_SIZE + 0.5,
+                            Math.min(xCenter, (b + 1) * BLOCK_SIZE - 0.5));
+                    double dy = yCenter - Math.max(c * BLOCK_SIZE + 0.5,
+                            Math.min(yCenter, (c + 1) * BLOCK_SIZE - 0.5));
+                    double r = (blockMax[block] - elapsed) * pixelsPerSecond;
+                    if ((r > 0) && (dx * dx + dy * dy < r * r)) {
+                        blockMax[block] = renderBlock(times, b, c, elapsed,
+                                xCenter, yCenter, pixelsPerSecond);
+                    }
+                }
+            }
+        }
+
+        if (palette != null) {
+            BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                    BufferedImage.TYPE_BYTE_INDEXED, palette);
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = indexLookup[times[p]];
+            }
+            return image;
+        }
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, imageType);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int p = 0; p < pixels.length; p++) {
+            pixels[p] = colorLookup[times[p]];
+        }
+        return image;
+    }
+
+    // converts an image drawn with the colors of the palette, as the discs
+    // are not antialiased; Java2D would only approximate them when drawing
+    // directly into an indexed image
+    private BufferedImage indexed(BufferedImage rgb) {
+        int[] source = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_BYTE_INDEXED, palette);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int lastRGB = 0;
+        int lastIndex = -1;
+        for (int p = 0; p < pixels.length; p++) {
+            int c = source[p] | 0xFF000000;
+            if ((lastIndex < 0) || (c != lastRGB)) {
+                lastIndex = paletteIndex(c);
+                if (lastIndex < 0) {
+                    return rgb;
+                }
+                lastRGB = c;
+            }
+            pixels[p] = (byte) lastIndex;
+        }
+        return image;
+    }
+
+    private int paletteIndex(int argb) {
+        for (int i = 0; i < palette.getMapSize(); i++) {
+            if (palette.getRGB(i) == argb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int renderBlock(int[] times, int b, int c, int elapsed,
+            double xCenter, double yCenter, double pixelsPerSecond) {
+        double secondsPerPixel = 1 / pixelsPerSecond;
+        int max = 0;
+        for (int j = c * BLOCK_SIZE; j < (c + 1) * BLOCK_SIZE; j++) {
+            double dy = j + 0.5 - yCenter;
+            int row = j * TILE_SIZE;
+            for (int i = b * BLOCK_SIZE; i < (b + 1) * BLOCK_SIZE; i++) {
+                int remaining = times[row + i] - elapsed;
+                if (remaining > 0) {
+                    double dx = i + 0.5 - xCenter;
+                    double d2 = dx * dx + dy * dy;
+                    double r = remaining * pixelsPerSecond;
+                    if (d2 < r * r) {
+                        times[row + i] = (int) (elapsed + Math.sqrt(d2) * secondsPerPixel);
+                    }
+                }
+                max = Math.max(max, times[row + i]);
+            }
+        }
+        return max;
+    }
+
+    // the positions of the stops in the tile, from their coordinates at
+    // zoom level 0, which only need to be scaled
+    private void centers(int zoom, int x, int y, int[] stops,
+            double[] xCenters, double[] yCenters) {
+        double scale = 1 << zoom;
+        for (int n = 0; n < stops.length; n++) {
+            xCenters[n] = index.x(stops[n]) * scale - tileToOSM(x);
+            yCenters[n] = index.y(stops[n]) * scale - tileToOSM(y);
+        }
+    }
+
+    // the length of the meridian arc between the top and the bottom of
+    // the tile, i.e. the difference of their latitudes times the radius
+    // of the earth
+    private static double tileHeightInMeters(int zoom, int x, int y) {
+        double s = 1 << zoom;
+        double top = Math.atan(Math.sinh(Math.PI - 2 * Math.PI * y / s));
+        double bottom = Math.atan(Math.sinh(Math.PI - 2 * Math.PI * (y + 1) / s));
+        return EARTH_RADIUS * (top - bottom);
     }
 
     private int tileToOSM(int coordinateTile) {
@@ -0,0 +1,261 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A map whose keys are primitive longs, stored in an open-addressing
+ * table with linear probing, so that lookups neither box their key nor
+ * follow more than one chain of slots. The entries are also linked in
+ * access order, from the least recently used one, as in an access-ordered
+ * LinkedHashMap.
+ *
+ * Values cannot be null. The map is not synchronized.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class LongHashMap<V> {
+
+    private static final int NONE = -1;
+
+    private long[] keys;
+    // null for the empty slots
+    private Object[] values;
+    // the slots of the previous and next entries in access order
+    private int[] before;
+    private int[] after;
+    private int mask;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    /**
+     * Class constructor.
+     *
+     * @param expectedSize  the number of entries that the map can contain
+     *                      before it is resized.
+     */
+    LongHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value associated with the given key and makes its entry
+     * the most recently used one, or returns null if there is no such entry.
+     *
+     * @param key   the key.
+     * @return      the associated value or null.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int slot = slotOf(key);
+        if (slot == NONE) {
+            return null;
+        }
+        moveToTail(slot);
+        return (V) values[slot];
+    }
+
+    /**
+     * Returns true if there is an entry for the given key. The access
+     * order is not changed.
+     *
+     * @param key   the key.
+     * @return      true if the key has an entry.
+     */
+    boolean containsKey(long key) {
+        return slotOf(key) != NONE;
+    }
+
+    /**
+     * Associates the given value with the given key, in the most recently
+     * used entry.
+     *
+     * @param key   the key.
+     * @param value the value, which must not be null.
+     * @return      the value previously associated with the key or null.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null value");
+        }
+        int slot = (int) mix(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V old = (V) values[slot];
+                values[slot] = value;
+                moveToTail(slot);
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        linkAtTail(slot);
+        if (++size > (mask + 1) / 2) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry of the given key.
+     *
+     * @param key   the key.
+     * @return      the value that was associated with the key or null.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int slot = slotOf(key);
+        if (slot == NONE) {
+            return null;
+        }
+        V old = (V) values[slot];
+        removeSlot(slot);
+        return old;
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    void clear() {
+        allocate(mask + 1);
+        size = 0;
+    }
+
+    /**
+     * Returns the key of the least recently used entry.
+     *
+     * @return  the key of the least recently used entry.
+     * @throws NoSuchElementException if the map is empty.
+     */
+    long eldestKey() {
+        if (head == NONE) {
+            throw new NoSuchElementException();
+        }
+        return keys[head];
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return  the number of entries.
+     */
+    int size() { return size; }
+
+    private int slotOf(long key) {
+        int slot = (int) mix(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void removeSlot(int slot) {
+        unlink(slot);
+        values[slot] = null;
+        size--;
+        // the following entries of the chain are shifted back, so that no
+        // entry is separated from its home slot by an empty slot
+        int hole = slot;
+        int j = (hole + 1) & mask;
+        while (values[j] != null) {
+            int home = (int) mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                values[j] = null;
+                relink(j, hole);
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldAfter = after;
+        int oldHead = head;
+        allocate(2 * (mask + 1));
+        // reinserted in access order, which is thus preserved
+        for (int s = oldHead; s != NONE; s = oldAfter[s]) {
+            int slot = (int) mix(oldKeys[s]) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[s];
+            values[slot] = oldValues[s];
+            linkAtTail(slot);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        before = new int[capacity];
+        after = new int[capacity];
+        mask = capacity - 1;
+        head = NONE;
+        tail = NONE;
+    }
+
+    private void linkAtTail(int slot) {
+        before[slot] = tail;
+        after[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            after[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (before[slot] == NONE) {
+            head = after[slot];
+        } else {
+            after[before[slot]] = after[slot];
+        }
+        if (after[slot] == NONE) {
+            tail = before[slot];
+        } else {
+            before[after[slot]] = before[slot];
+        }
+    }
+
+    private void moveToTail(int slot) {
+        if (slot != tail) {
+            unlink(slot);
+            linkAtTail(slot);
+        }
+    }
+
+    // the entry of slot from has moved to slot to
+    private void relink(int from, int to) {
+        before[to] = before[from];
+        after[to] = after[from];
+        if (before[to] == NONE) {
+            head = to;
+        } else {
+            after[before[to]] = to;
+        }
+        if (after[to] == NONE) {
+            tail = to;
+        } else {
+            before[after[to]] = to;
+        }
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -1,19 +1,26 @@
 package ch.epfl.isochrone.tiledmap;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URL;
 
 import javax.imageio.ImageIO;
 
 /**
- * Provides tiles obtained from an OpenStreetMap server.
+ * Provides tiles obtained from an OpenStreetMap server. The encoded
+ * images can be kept in a DiskTileStore, which is then queried before
+ * the server.
  *
  * @author Jakob Bauer (223590)
  */
 public final class OSMTileProvider implements TileProvider {
 
+    private static final long ERROR_TILE_LIFETIME = 30 * 1000;
+
     private final URL baseURL;
+    private final DiskTileStore store;
+    private final TileDownloader downloader;
     private final BufferedImage errorTile;
 
     /**
@@ -23,7 +30,35 @@ public final class OSMTileProvider implements TileProvider {
      * @throws IOException  if there is an IO problem.
      */
     public OSMTileProvider(URL baseURL) throws IOException {
+        this(baseURL, null);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param baseURL       the URL of the OpenStreetMap server.
+     * @param store         the store in which the downloaded tiles are
+     *                      kept, or null if they are not kept.
+     * @throws IOException  if there is an IO problem.
+     */
+    public OSMTileProvider(URL baseURL, DiskTileStore store) throws IOException {
+        this(baseURL, store, new TileDownloader());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param baseURL       the URL of the OpenStreetMap server.
+     * @param store         the store in which the downloaded tiles are
+     *                      kept, or null if they are not kept.
+     * @param downloader    the downloader of the tiles.
+     * @throws IOException  if there is an IO problem.
+     */
+    public OSMTileProvider(URL baseURL, DiskTileStore store, TileDownloader downloader)
+            throws IOException {
         this.baseURL = baseURL;
+        this.store = store;
+        this.downloader = downloader;
         this.errorTile = ImageIO.read(getClass().getResource("/images/error-tile.png"));
     }
 
@@ -38,20 +73,59 @@ public final class OSMTileProvider implements TileProvider {
     }
 
     /* (non-Javadoc)
-     * Returns a tile with an error message in case the
-     * server cannot be queried.
+     * Returns the expired tile of the store, or else a tile
+     * with an error message, in case the server cannot be
+     * queried. That tile expires after ERROR_TILE_LIFETIME
+     * milliseconds, so that caches query the server again
+     * later.
      * @see ch.epfl.isochrone.tiledmap.TileProvider#tileAt(int, int, int)
      */
     @Override
     public Tile tileAt(int zoom, int x, int y) {
-        BufferedImage image = null;
+        BufferedImage image = storedImage(zoom, x, y, false);
+        if (image != null) {
+            return new Tile(zoom, x, y, image);
+        }
         String extension = zoom + "/" + x + "/" + y + ".png";
+        byte[] encodedImage;
         try {
             URL imageURL = new URL(baseURL, extension);
-            image = ImageIO.read(imageURL);
+            encodedImage = downloader.download(imageURL);
+            image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+            if (image == null) {
+                throw new IOException("Invalid image: " + imageURL);
+            }
         } catch(IOException e) {
-            image = errorTile;
+            BufferedImage staleImage = storedImage(zoom, x, y, true);
+            return new Tile(zoom, x, y, (staleImage != null) ? staleImage : errorTile, 1,
+                    System.currentTimeMillis() + ERROR_TILE_LIFETIME);
+        }
+        if (store != null) {
+            try {
+                store.put(zoom, x, y, encodedImage);
+            } catch (IOException e) {
+                // the tile is simply downloaded again next time
+            }
         }
         return new Tile(zoom, x, y, image);
     }
+
+    // returns null if the tile is not stored (or has expired, unless stale
+    // tiles are accepted) or cannot be read, in which case it is downloaded
+    // again
+    private BufferedImage storedImage(int zoom, int x, int y, boolean stale) {
+        if (store == null) {
+            return null;
+        }
+        try {
+            byte[] encodedImage = stale
+                    ? store.getStale(zoom, x, y)
+                    : store.get(zoom, x, y);
+            return (encodedImage != null)
+                    ? ImageIO.read(new ByteArrayInputStream(encodedImage))
+                    : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * An image with indexed colors whose pixels are compressed by run-length
+ * encoding. The images of isochrone tiles consist of a few large regions
+ * of the same color, so that they take a small fraction of the bytes of
+ * their pixels in this form.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class RunLengthImage {
+
+    // estimated size of the object and of its array, without the runs
+    private static final int OVERHEAD_BYTES = 48;
+    private static final int MAX_RUN = 256;
+
+    private final IndexColorModel colorModel;
+    private final int width;
+    private final int height;
+    // pairs of bytes: the length of a run minus one and the index of its
+    // color, for the pixels row after row
+    private final byte[] runs;
+
+    private RunLengthImage(IndexColorModel colorModel, int width, int height, byte[] runs) {
+        this.colorModel = colorModel;
+        this.width = width;
+        this.height = height;
+        this.runs = runs;
+    }
+
+    /**
+     * Compresses an image of type TYPE_BYTE_INDEXED. The color model is
+     * shared with the image, not copied.
+     *
+     * @param image the image.
+     * @return      the compressed image, or null if the image does not
+     *              have indexed colors stored one byte per pixel, or if
+     *              compressing it would not save any byte.
+     */
+    static RunLengthImage encode(BufferedImage image) {
+        byte[] pixels = indexedPixels(image);
+        if (pixels == null) {
+            return null;
+        }
+        byte[] runs = new byte[64];
+        int n = 0;
+        int i = 0;
+        while (i < pixels.length) {
+            byte index = pixels[i];
+            int end = Math.min(pixels.length, i + MAX_RUN);
+            int j = i + 1;
+            while ((j < end) && (pixels[j] == index)) {
+                j++;
+            }
+            if (n == runs.length) {
+                if (2 * n >= pixels.length) {
+                    return null;
+                }
+                runs = Arrays.copyOf(runs, 2 * n);
+            }
+            runs[n++] = (byte) (j - i - 1);
+            runs[n++] = index;
+            i = j;
+        }
+        return new RunLengthImage((IndexColorModel) image.getColorModel(),
+                image.getWidth(), image.getHeight(), Arrays.copyOf(runs, n));
+    }
+
+    /**
+     * Returns a new image with the pixels of this one.
+     *
+     * @return  the decompressed image, of type TYPE_BYTE_INDEXED.
+     */
+    BufferedImage decode() {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int p = 0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int end = p + (runs[r] & 0xFF) + 1;
+            Arrays.fill(pixels, p, end, runs[r + 1]);
+            p = end;
+        }
+        return image;
+    }
+
+    /**
+     * Returns the (estimated) number of bytes of the compressed image.
+     * The color model, which is shared, is not counted.
+     *
+     * @return  the number of bytes of the compressed image.
+     */
+    int bytes() { return runs.length + OVERHEAD_BYTES; }
+
+    // returns the array of the pixels of the image if it has one byte per
+    // pixel, row after row, and null otherwise
+    private static byte[] indexedPixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_BYTE_INDEXED) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if ((raster.getParent() != null)
+                || (raster.getSampleModelTranslateX() != 0)
+                || (raster.getSampleModelTranslateY() != 0)
+                || (! (raster.getSampleModel() instanceof ComponentSampleModel))
+                || (((ComponentSampleModel) raster.getSampleModel())
+                        .getScanlineStride() != image.getWidth())) {
+            return null;
+        }
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        if ((buffer.getNumBanks() != 1) || (buffer.getOffset() != 0)) {
+            return null;
+        }
+        return buffer.getData();
+    }
+}
@@ -0,0 +1,229 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.cos;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Stop;
+
+/**
+ * A spatial index over the stops of a fastest-path tree that can be
+ * reached early enough to be drawn on an isochrone map. Each stop is
+ * stored with its position in OSM coordinates at zoom level 0 and with
+ * the radius of the largest disc that can be drawn around it, so that
+ * the stops influencing a given region can be found without visiting
+ * all the others.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class StopIndex {
+
+    private static final double EARTH_RADIUS = 6378137;
+    // the map scale varies slightly with the latitude inside a disc
+    private static final double RADIUS_MARGIN = 1.05;
+
+    private final Stop[] stops;
+    private final int[] elapsedTimes;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] radii;
+    private final double maxRadius;
+
+    // uniform grid: the stops of cell c are at indices
+    // [cellStart[c], cellStart[c + 1]) of the arrays above
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStart;
+
+    /**
+     * Class constructor.
+     *
+     * @param tree          the fastest-path tree.
+     * @param maxTime       the maximum time (in seconds after the starting
+     *                      time of the tree) that is represented on the map.
+     * @param walkingSpeed  the walking speed in meters per second.
+     */
+    public StopIndex(FastestPathTree tree, int maxTime, double walkingSpeed) {
+        this(tree, tree.stops(), maxTime, walkingSpeed);
+    }
+
+    /**
+     * Class constructor for an index of some of the stops of a tree.
+     *
+     * @param tree          the fastest-path tree.
+     * @param treeStops     the stops to index; those that the tree does
+     *                      not reach are ignored.
+     * @param maxTime       the maximum time (in seconds after the starting
+     *                      time of the tree) that is represented on the map.
+     * @param walkingSpeed  the walking speed in meters per second.
+     */
+    public StopIndex(FastestPathTree tree, Set<Stop> treeStops, int maxTime,
+            double walkingSpeed) {
+        int startingTime = tree.startingTime();
+
+        int n = 0;
+        Stop[] s = new Stop[treeStops.size()];
+        int[] e = new int[treeStops.size()];
+        double[] x = new double[treeStops.size()];
+        double[] y = new double[treeStops.size()];
+        double[] r = new double[treeStops.size()];
+        double maxR = 0;
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (Stop stop : treeStops) {
+            int elapsed = tree.arrivalTime(stop) - startingTime;
+            if (elapsed < maxTime) {
+                PointOSM p = stop.position().toOSM(0);
+                s[n] = stop;
+                e[n] = elapsed;
+                x[n] = p.x();
+                y[n] = p.y();
+                r[n] = RADIUS_MARGIN * metersToOSM0((maxTime - elapsed) * walkingSpeed,
+                        stop.position().latitude());
+                maxR = max(maxR, r[n]);
+                x0 = min(x0, x[n]);
+                y0 = min(y0, y[n]);
+                x1 = max(x1, x[n]);
+                y1 = max(y1, y[n]);
+                n++;
+            }
+        }
+
+        this.maxRadius = maxR;
+        if (n == 0) {
+            x0 = y0 = x1 = y1 = 0;
+        }
+        this.minX = x0;
+        this.minY = y0;
+        // cells of half the largest radius keep the number of candidates
+        // low without making the grid itself large
+        this.cellSize = (maxR > 0) ? (maxR / 2) : 1;
+        this.columns = cellIndex(x1 - x0) + 1;
+        this.rows = cellIndex(y1 - y0) + 1;
+
+        // counting sort of the stops by cell
+        int[] cellOf = new int[n];
+        this.cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cellIndex(y[i] - y0) * columns + cellIndex(x[i] - x0);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+        this.stops = new Stop[n];
+        this.elapsedTimes = new int[n];
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.radii = new double[n];
+        for (int i = 0; i < n; i++) {
+            int j = next[cellOf[i]]++;
+            stops[j] = s[i];
+            elapsedTimes[j] = e[i];
+            xs[j] = x[i];
+            ys[j] = y[i];
+            radii[j] = r[i];
+        }
+    }
+
+    /**
+     * Returns the indices of the stops whose largest disc intersects the
+     * given rectangle, expressed in OSM coordinates at zoom level 0.
+     *
+     * @param x0    the left side of the rectangle.
+     * @param y0    the top side of the rectangle.
+     * @param x1    the right side of the rectangle.
+     * @param y1    the bottom side of the rectangle.
+     * @return      the indices of the stops, in increasing order.
+     */
+    public int[] stopsIntersecting(double x0, double y0, double x1, double y1) {
+        int c0 = max(0, cellIndex(x0 - maxRadius - minX));
+        int c1 = min(columns - 1, cellIndex(x1 + maxRadius - minX));
+        int r0 = max(0, cellIndex(y0 - maxRadius - minY));
+        int r1 = min(rows - 1, cellIndex(y1 + maxRadius - minY));
+
+        int[] result = new int[8];
+        int n = 0;
+        for (int row = r0; row <= r1; row++) {
+            for (int col = c0; col <= c1; col++) {
+                int cell = row * columns + col;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    double dx = xs[i] - max(x0, min(xs[i], x1));
+                    double dy = ys[i] - max(y0, min(ys[i], y1));
+                    if (dx * dx + dy * dy < radii[i] * radii[i]) {
+                        if (n == result.length) {
+                            result = Arrays.copyOf(result, 2 * n);
+                        }
+                        result[n++] = i;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Returns the number of stops in the index.
+     *
+     * @return  the number of stops that can be reached early enough
+     *          to be drawn.
+     */
+    public int size() { return stops.length; }
+
+    /**
+     * Returns the stop with the given index.
+     *
+     * @param i the index of the stop.
+     * @return  the stop.
+     */
+    public Stop stop(int i) { return stops[i]; }
+
+    /**
+     * Returns the time it takes to reach the stop with the given index.
+     *
+     * @param i the index of the stop.
+     * @return  the arrival time at the stop minus the starting time
+     *          of the tree, in seconds.
+     */
+    public int elapsedTime(int i) { return elapsedTimes[i]; }
+
+    /**
+     * Returns the x coordinate of the stop with the given index.
+     *
+     * @param i the index of the stop.
+     * @return  the x coordinate of the stop in OSM coordinates at zoom
+     *          level 0, which only have to be multiplied by 2^zoom to
+     *          give the ones of another zoom level.
+     */
+    public double x(int i) { return xs[i]; }
+
+    /**
+     * Returns the y coordinate of the stop with the given index.
+     *
+     * @param i the index of the stop.
+     * @return  the y coordinate of the stop in OSM coordinates at zoom
+     *          level 0.
+     */
+    public double y(int i) { return ys[i]; }
+
+    private int cellIndex(double offset) {
+        return (int) floor(offset / cellSize);
+    }
+
+    private static double metersToOSM0(double meters, double latitude) {
+        // at zoom level 0, the 256 units of the map span the circumference
+        // of the parallel at the given latitude
+        return meters * 256 / (2 * PI * EARTH_RADIUS * cos(latitude));
+    }
+}
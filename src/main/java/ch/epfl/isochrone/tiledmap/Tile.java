@@ -4,7 +4,7 @@ import java.awt.image.BufferedImage;
 
 /**
  * A map tile represented by its coordinates, its zoom factor,
- * and its image.
+ * its image and the opacity with which the image is drawn.
  *
  * @author Jakob Bauer (223590)
  */
@@ -14,6 +14,8 @@ public final class Tile {
     private final double x;
     private final double y;
     private final BufferedImage image;
+    private final double opacity;
+    private final long expirationTime;
 
     /**
      * Class constructor.
@@ -24,10 +26,52 @@ public final class Tile {
      * @param image the map image.
      */
     public Tile(int zoom, double x, double y, BufferedImage image) {
+        this(zoom, x, y, image, 1);
+    }
+
+    /**
+     * Class constructor for tiles whose image is drawn with a constant
+     * opacity, which avoids transforming every pixel of the image.
+     *
+     * @param zoom      the zoom factor.
+     * @param x         the x coordinate.
+     * @param y         the y coordinate.
+     * @param image     the map image.
+     * @param opacity   the opacity with which the image is drawn.
+     * @throws IllegalArgumentException if the opacity is not
+     *                  between 0 and 1.
+     */
+    public Tile(int zoom, double x, double y, BufferedImage image, double opacity) {
+        this(zoom, x, y, image, opacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * Class constructor for tiles that are only valid until a given
+     * time, such as the ones replacing tiles that could not be obtained.
+     * Caches drop such tiles once they expire.
+     *
+     * @param zoom              the zoom factor.
+     * @param x                 the x coordinate.
+     * @param y                 the y coordinate.
+     * @param image             the map image.
+     * @param opacity           the opacity with which the image is drawn.
+     * @param expirationTime    the time (as given by
+     *                          System.currentTimeMillis) at which the
+     *                          tile expires.
+     * @throws IllegalArgumentException if the opacity is not
+     *                  between 0 and 1.
+     */
+    public Tile(int zoom, double x, double y, BufferedImage image, double opacity,
+            long expirationTime) {
+        if ((opacity < 0) || (opacity > 1)) {
+            throw new IllegalArgumentException("invalid opacity");
+        }
         this.zoom = zoom;
         this.x = x;
         this.y = y;
         this.image = image;
+        this.opacity = opacity;
+        this.expirationTime = expirationTime;
     }
 
     /**
@@ -36,4 +80,29 @@ public final class Tile {
      * @return  the image of the tile.
      */
     public BufferedImage image() { return image; }
+
+    /**
+     * Returns the opacity with which the image of the tile is drawn.
+     *
+     * @return  the opacity, between 0 and 1.
+     */
+    public double opacity() { return opacity; }
+
+    /**
+     * Returns true if the tile has expired.
+     *
+     * @return  true if the expiration time of the tile is past.
+     */
+    public boolean isExpired() {
+        return (expirationTime != Long.MAX_VALUE)
+                && (System.currentTimeMillis() >= expirationTime);
+    }
+
+    /**
+     * Returns the time at which the tile expires.
+     *
+     * @return  the expiration time (as given by System.currentTimeMillis),
+     *          or Long.MAX_VALUE if the tile does not expire.
+     */
+    public long expirationTime() { return expirationTime; }
 }
@@ -0,0 +1,333 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A single file holding the encoded images of many tiles, grouped in
+ * layers (for example one per isochrone map), followed by an index of
+ * their offsets. The archive is mapped in memory, so that a tile can be
+ * sent from its bytes without copying them.
+ *
+ * The tiles are appended by a Writer, each in a record with its own
+ * checksum, and the index is only written when the writer is finished.
+ * A writer opened on an unfinished archive, for example after the
+ * program writing it was interrupted, keeps the complete records and
+ * continues after them.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class TileArchive implements Closeable {
+
+    /** The number of layers that an archive can contain. */
+    public static final int MAX_LAYERS = 1 << 16;
+
+    private static final int MAGIC = 0x49534F41;
+    // key, length and checksum
+    private static final int RECORD_HEADER_BYTES = 16;
+    // key, offset and length
+    private static final int INDEX_ENTRY_BYTES = 20;
+    // index offset, number of tiles and magic number
+    private static final int FOOTER_BYTES = 16;
+    private static final int LAYER_SHIFT = 47;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long[] keys;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private TileArchive(FileChannel channel, MappedByteBuffer buffer, long[] keys,
+            long[] offsets, int[] lengths) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Opens a finished archive for reading.
+     *
+     * @param file          the archive.
+     * @return              the archive.
+     * @throws IOException  if the archive cannot be read, is not finished
+     *                      or is larger than 2 GB.
+     */
+    public static TileArchive open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("archive too large to be mapped: " + file);
+            }
+            long indexOffset = indexOffset(channel);
+            if (indexOffset < 0) {
+                throw new IOException("unfinished archive: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int n = (int) ((size - FOOTER_BYTES - indexOffset) / INDEX_ENTRY_BYTES);
+            long[] keys = new long[n];
+            long[] offsets = new long[n];
+            int[] lengths = new int[n];
+            buffer.position((int) indexOffset);
+            for (int i = 0; i < n; i++) {
+                keys[i] = buffer.getLong();
+                offsets[i] = buffer.getLong();
+                lengths[i] = buffer.getInt();
+            }
+            buffer.position(0);
+            return new TileArchive(channel, buffer, keys, offsets, lengths);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the encoded image of a tile, as a read-only view of the
+     * mapped archive, or null if the archive does not contain the tile.
+     *
+     * @param layer the layer of the tile.
+     * @param zoom  the zoom level.
+     * @param x     the x coordinate.
+     * @param y     the y coordinate.
+     * @return      the bytes of the tile or null.
+     */
+    public ByteBuffer get(int layer, int zoom, int x, int y) {
+        int i = Arrays.binarySearch(keys, key(layer, zoom, x, y));
+        if (i < 0) {
+            return null;
+        }
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position((int) offsets[i]).limit((int) offsets[i] + lengths[i]);
+        return view.slice();
+    }
+
+    /**
+     * Returns the number of tiles in the archive.
+     *
+     * @return  the number of tiles.
+     */
+    public int size() { return keys.length; }
+
+    /* (non-Javadoc)
+     * The views returned by get must not be used anymore.
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Appends tiles to an archive. The writer can be used by several
+     * threads at the same time.
+     *
+     * @author Jakob Bauer (223590)
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        // the position of the tile of every key in the arrays below
+        private final LongHashMap<Integer> positions = new LongHashMap<Integer>(1024);
+        private long[] keys = new long[1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private long end;
+        // true if the index follows the records
+        private boolean finished;
+
+        /**
+         * Class constructor. The tiles already in the archive, finished
+         * or not, are kept; an incomplete last record is dropped.
+         *
+         * @param file          the archive, which is created if needed.
+         * @throws IOException  if the archive cannot be opened or read.
+         */
+        public Writer(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long indexOffset = indexOffset(channel);
+                long limit = (indexOffset >= 0) ? indexOffset : channel.size();
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+                while (end + RECORD_HEADER_BYTES <= limit) {
+                    header.clear();
+                    readFully(channel, header, end);
+                    header.flip();
+                    long key = header.getLong();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    long data = end + RECORD_HEADER_BYTES;
+                    if ((length < 0) || (data + length > limit)) {
+                        break;
+                    }
+                    ByteBuffer bytes = ByteBuffer.allocate(length);
+                    readFully(channel, bytes, data);
+                    if (checksum != checksum(bytes.array())) {
+                        break;
+                    }
+                    add(key, data, length);
+                    end = data + length;
+                }
+                // the index of a finished archive is kept until a tile is added
+                finished = (end == indexOffset);
+                if (! finished) {
+                    channel.truncate(end);
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns true if the archive contains the given tile.
+         *
+         * @param layer the layer of the tile.
+         * @param zoom  the zoom level.
+         * @param x     the x coordinate.
+         * @param y     the y coordinate.
+         * @return      true if the tile has been written.
+         */
+        public synchronized boolean contains(int layer, int zoom, int x, int y) {
+            return positions.containsKey(key(layer, zoom, x, y));
+        }
+
+        /**
+         * Returns the number of tiles in the archive.
+         *
+         * @return  the number of tiles.
+         */
+        public synchronized int size() { return positions.size(); }
+
+        /**
+         * Appends a tile to the archive, unless it already contains it.
+         *
+         * @param layer         the layer of the tile.
+         * @param zoom          the zoom level.
+         * @param x             the x coordinate.
+         * @param y             the y coordinate.
+         * @param encodedImage  the encoded image of the tile.
+         * @throws IOException  if the tile cannot be written, or if the
+         *                      archive would then be too large to be
+         *                      opened (2 GB, with its index).
+         */
+        public synchronized void put(int layer, int zoom, int x, int y,
+                byte[] encodedImage) throws IOException {
+            long key = key(layer, zoom, x, y);
+            if (positions.containsKey(key)) {
+                return;
+            }
+            long indexBytes = (positions.size() + 1L) * INDEX_ENTRY_BYTES + FOOTER_BYTES;
+            if (end + RECORD_HEADER_BYTES + encodedImage.length + indexBytes > Integer.MAX_VALUE) {
+                throw new IOException("archive full: it cannot be larger than 2 GB");
+            }
+            if (finished) {
+                channel.truncate(end);
+                finished = false;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + encodedImage.length);
+            record.putLong(key).putInt(encodedImage.length).putInt(checksum(encodedImage));
+            record.put(encodedImage).flip();
+            writeFully(channel, record, end);
+            add(key, end + RECORD_HEADER_BYTES, encodedImage.length);
+            end += record.capacity();
+        }
+
+        /**
+         * Writes the index of the archive, which can then be opened for
+         * reading, and forces its content to the disk. Tiles can still
+         * be added afterwards, and the index is then written again.
+         *
+         * @throws IOException  if the index cannot be written.
+         */
+        public synchronized void finish() throws IOException {
+            int n = positions.size();
+            long[] sorted = Arrays.copyOf(keys, n);
+            Arrays.sort(sorted);
+            ByteBuffer index = ByteBuffer.allocate(n * INDEX_ENTRY_BYTES + FOOTER_BYTES);
+            for (long key : sorted) {
+                int i = positions.get(key);
+                index.putLong(key).putLong(offsets[i]).putInt(lengths[i]);
+            }
+            index.putLong(end).putInt(n).putInt(MAGIC).flip();
+            writeFully(channel, index, end);
+            channel.truncate(end + index.capacity());
+            channel.force(true);
+            finished = true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            channel.close();
+        }
+
+        private void add(long key, long offset, int length) {
+            int i = positions.size();
+            if (i == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * i);
+                offsets = Arrays.copyOf(offsets, 2 * i);
+                lengths = Arrays.copyOf(lengths, 2 * i);
+            }
+            keys[i] = key;
+            offsets[i] = offset;
+            lengths[i] = length;
+            positions.put(key, i);
+        }
+    }
+
+    private static long key(int layer, int zoom, int x, int y) {
+        if ((layer < 0) || (layer >= MAX_LAYERS)) {
+            throw new IllegalArgumentException("invalid layer");
+        }
+        TileCache.checkCoordinates(zoom, x, y);
+        return ((long) layer << LAYER_SHIFT) | TileCache.packCoordinates(zoom, x, y);
+    }
+
+    // returns the offset of the index of a finished archive, and -1 if
+    // the archive is not finished
+    private static long indexOffset(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_BYTES) {
+            return -1;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+        readFully(channel, footer, size - FOOTER_BYTES);
+        footer.flip();
+        long indexOffset = footer.getLong();
+        int n = footer.getInt();
+        boolean finished = (footer.getInt() == MAGIC) && (n >= 0) && (indexOffset >= 0)
+                && (indexOffset + (long) n * INDEX_ENTRY_BYTES + FOOTER_BYTES == size);
+        return finished ? indexOffset : -1;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of archive");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
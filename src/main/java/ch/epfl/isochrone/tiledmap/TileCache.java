@@ -1,27 +1,99 @@
 package ch.epfl.isochrone.tiledmap;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.awt.image.DataBuffer;
 
 /**
- * Provides a map-like interface to cache tiles.
+ * Provides a map-like interface to cache tiles. The cache is bounded by
+ * the number of bytes of the images of its tiles and can be used by
+ * several threads at the same time: the tiles are spread over segments
+ * that are locked independently.
  *
  * @author Jakob Bauer (223590)
  */
 public class TileCache {
 
-    private static final int MAX_SIZE = 100;
+    /**
+     * The ways in which tiles are chosen to be evicted from the cache.
+     */
+    public enum Eviction {
+        /** The least recently used tile is evicted. */
+        LRU,
+        /**
+         * The least recently used tile is evicted, but only if it was
+         * used less frequently than the tile that is added; otherwise
+         * the added tile is not kept (TinyLFU admission).
+         */
+        TINY_LFU
+    }
+
+    /**
+     * The ways in which the images of the tiles are kept in the cache.
+     */
+    public enum Storage {
+        /** The images are kept as they are. */
+        IMAGES,
+        /**
+         * The images with indexed colors (TYPE_BYTE_INDEXED) are compressed
+         * by run-length encoding, and decompressed by get; the others are
+         * kept as they are. This suits images made of large regions of
+         * the same color, such as the ones of isochrone tiles.
+         */
+        RUN_LENGTH
+    }
+
+    /** The number of bytes used by default by a cache. */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
     private static final int MAX_ZOOM = 20;
     private static final int MAX_COORDINATE = 1048576;
+    private static final int NUMBER_OF_SEGMENTS = 16;
+    // estimated size of an entry, without its image
+    private static final int ENTRY_BYTES = 96;
 
-    @SuppressWarnings("serial")
-    private LinkedHashMap<Long, Tile> cache =
-        new LinkedHashMap<Long, Tile>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Long, Tile> e) {
-                return size() > MAX_SIZE;
-            }
-        };
+    private final long maxBytes;
+    private final Storage storage;
+    private final Segment[] segments;
+
+    /**
+     * Class constructor for a cache of DEFAULT_MAX_BYTES bytes with
+     * LRU eviction.
+     */
+    public TileCache() {
+        this(DEFAULT_MAX_BYTES, Eviction.LRU);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param maxBytes  the maximum number of bytes of the cached tiles.
+     * @param eviction  the way in which tiles are evicted.
+     * @throws IllegalArgumentException if the maximum number of bytes
+     *                  is not positive.
+     */
+    public TileCache(long maxBytes, Eviction eviction) {
+        this(maxBytes, eviction, Storage.IMAGES);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param maxBytes  the maximum number of bytes of the cached tiles.
+     * @param eviction  the way in which tiles are evicted.
+     * @param storage   the way in which the images are kept.
+     * @throws IllegalArgumentException if the maximum number of bytes
+     *                  is not positive.
+     */
+    public TileCache(long maxBytes, Eviction eviction, Storage storage) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid maximum number of bytes");
+        }
+        this.maxBytes = maxBytes;
+        this.storage = storage;
+        this.segments = new Segment[NUMBER_OF_SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxBytes / NUMBER_OF_SEGMENTS, eviction);
+        }
+    }
 
     /**
      * Adds a tile (value) for the given coordinates and
@@ -33,22 +105,26 @@ public class TileCache {
      * @param tile  the tile.
      */
     public void put(int zoom, int x, int y, Tile tile) {
-        if ((zoom < 0) || (zoom > MAX_ZOOM)) {
-            throw new IllegalArgumentException("Invalid zoom level");
-        }
-        if ((x < 0) || (x > MAX_COORDINATE)) {
-            throw new IllegalArgumentException("Invalid x coordinate");
-        }
-        if ((y < 0) || (y > MAX_COORDINATE)) {
-            throw new IllegalArgumentException("Invalid y coordinate");
-        }
-        Long triplet = packCoordinates(zoom, x, y);
-        cache.put(triplet, tile);
+        checkCoordinates(zoom, x, y);
+        put(packCoordinates(zoom, x, y), tile);
+    }
+
+    // the key is the packed coordinates, possibly with higher bits set
+    void put(long key, Tile tile) {
+        // compressed before locking the segment
+        RunLengthImage compressed = (storage == Storage.RUN_LENGTH)
+                ? RunLengthImage.encode(tile.image())
+                : null;
+        Entry entry = (compressed != null)
+                ? new Entry(compressed, tile.opacity(), tile.expirationTime())
+                : new Entry(tile, tileBytes(tile));
+        segmentFor(key).put(key, entry);
     }
 
     /**
      * Returns the tile associated with the given coordinates
-     * and zoom level or null if no such tile exists.
+     * and zoom level or null if no such tile exists. Expired
+     * tiles are removed instead of being returned.
      *
      * @param zoom  the zoom level.
      * @param x     the x coordinate.
@@ -57,6 +133,135 @@ public class TileCache {
      *              zoom level or null if no such tile exists.
      */
     public Tile get(int zoom, int x, int y) {
+        checkCoordinates(zoom, x, y);
+        return get(packCoordinates(zoom, x, y));
+    }
+
+    Tile get(long key) {
+        Entry entry = segmentFor(key).get(key);
+        return (entry != null) ? entry.tile(key) : null;
+    }
+
+    /**
+     * Returns true if the cache contains a tile for the given
+     * coordinates and zoom level.
+     *
+     * @param zoom  the zoom level.
+     * @param x     the x coordinate.
+     * @param y     the y coordinate.
+     * @return      true if the cache contains the tile.
+     */
+    public boolean containsKey(int zoom, int x, int y) {
+        checkCoordinates(zoom, x, y);
+        return containsKey(packCoordinates(zoom, x, y));
+    }
+
+    boolean containsKey(long key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    /**
+     * Removes all the tiles from the cache. The counters are kept.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.entries.clear();
+                s.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes of the cached tiles.
+     *
+     * @return  the maximum number of bytes.
+     */
+    public long maxBytes() { return maxBytes; }
+
+    /**
+     * Returns the (estimated) number of bytes of the cached tiles.
+     *
+     * @return  the number of bytes of the cached tiles.
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment s : segments) {
+            synchronized (s) { bytes += s.bytes; }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of tiles in the cache.
+     *
+     * @return  the number of cached tiles.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) { size += s.entries.size(); }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of calls to get that found a tile.
+     *
+     * @return  the number of hits.
+     */
+    public long hitCount() {
+        long count = 0;
+        for (Segment s : segments) {
+            synchronized (s) { count += s.hits; }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of calls to get that did not find a tile.
+     *
+     * @return  the number of misses.
+     */
+    public long missCount() {
+        long count = 0;
+        for (Segment s : segments) {
+            synchronized (s) { count += s.misses; }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of tiles that were removed, or not admitted,
+     * to keep the cache within its maximum number of bytes.
+     *
+     * @return  the number of evictions.
+     */
+    public long evictionCount() {
+        long count = 0;
+        for (Segment s : segments) {
+            synchronized (s) { count += s.evictions; }
+        }
+        return count;
+    }
+
+    private Segment segmentFor(long triplet) {
+        long h = triplet * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 60) & (NUMBER_OF_SEGMENTS - 1)];
+    }
+
+    // the images of uniform tiles are shared and only cost a reference
+    static int tileBytes(Tile tile) {
+        if (UniformTiles.isUniform(tile.image())) {
+            return ENTRY_BYTES;
+        }
+        DataBuffer buffer = tile.image().getRaster().getDataBuffer();
+        long bytes = (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (int) Math.min(Integer.MAX_VALUE - ENTRY_BYTES, bytes) + ENTRY_BYTES;
+    }
+
+    static void checkCoordinates(int zoom, int x, int y) {
         if ((zoom < 0) || (zoom > MAX_ZOOM)) {
             throw new IllegalArgumentException("Invalid zoom level");
         }
@@ -66,26 +271,182 @@ public class TileCache {
         if ((y < 0) || (y > MAX_COORDINATE)) {
             throw new IllegalArgumentException("Invalid y coordinate");
         }
-        Long triplet = packCoordinates(zoom, x, y);
-        return cache.get(triplet);
     }
 
     /**
-     * Returns true if the cache contains a tile for the given
-     * coordinates and zoom level.
+     * Packs the coordinates of a tile into the key under which the cache
+     * keeps it. The keys of different tiles are different, and leave the
+     * 16 highest (positive) bits free, e.g. for a layer number.
      *
-     * @param zoom  the zoom level.
-     * @param x     the x coordinate.
-     * @param y     the y coordinate.
-     * @return      true if the cache contains the tile.
+     * @param zoom  the zoom level of the tile (between 0 and 20).
+     * @param x     the x coordinate of the tile (between 0 and 2^20).
+     * @param y     the y coordinate of the tile (between 0 and 2^20).
+     * @return  the key of the tile.
      */
-    public boolean containsKey(int zoom, int x, int y) {
-        Long triplet = packCoordinates(zoom, x, y);
-        return cache.containsKey(triplet);
+    // the coordinates take 21 bits each, as they can be equal to 2^20,
+    // and the zoom level 5 bits, which leaves 16 (positive) bits above
+    public static long packCoordinates(int zoom, int x, int y) {
+        return ((long) zoom << 42) | ((long) x << 21) | y;
     }
 
-    private Long packCoordinates(int zoom, int x, int y) {
-        Long packedCoordinates = new Long(((zoom << 40) | (x << 20) | y));
-        return packedCoordinates;
+    // a tile, or the compressed image of a tile with its attributes
+    private static final class Entry {
+        // null if the image is compressed
+        final Tile tile;
+        final RunLengthImage compressed;
+        final double opacity;
+        final long expirationTime;
+        final int bytes;
+
+        Entry(Tile tile, int bytes) {
+            this.tile = tile;
+            this.compressed = null;
+            this.opacity = tile.opacity();
+            this.expirationTime = tile.expirationTime();
+            this.bytes = bytes;
+        }
+
+        Entry(RunLengthImage compressed, double opacity, long expirationTime) {
+            this.tile = null;
+            this.compressed = compressed;
+            this.opacity = opacity;
+            this.expirationTime = expirationTime;
+            this.bytes = compressed.bytes() + ENTRY_BYTES;
+        }
+
+        boolean isExpired() {
+            return (expirationTime != Long.MAX_VALUE)
+                    && (System.currentTimeMillis() >= expirationTime);
+        }
+
+        // the coordinates of a decompressed tile are those of its key
+        Tile tile(long key) {
+            if (tile != null) {
+                return tile;
+            }
+            int zoom = (int) (key >>> 42) & 0x1F;
+            int x = (int) (key >>> 21) & 0x1FFFFF;
+            int y = (int) key & 0x1FFFFF;
+            return new Tile(zoom, x, y, compressed.decode(), opacity, expirationTime);
+        }
+    }
+
+    // a part of the cache with its own lock, budget and counters
+    private static final class Segment {
+        private final long maxBytes;
+        private final FrequencySketch sketch;
+        // in access order, from the least recently used entry
+        private final LongHashMap<Entry> entries = new LongHashMap<Entry>(16);
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(long maxBytes, Eviction eviction) {
+            this.maxBytes = maxBytes;
+            this.sketch = (eviction == Eviction.TINY_LFU)
+                    ? new FrequencySketch(maxBytes)
+                    : null;
+        }
+
+        synchronized Entry get(long triplet) {
+            if (sketch != null) {
+                sketch.increment(triplet);
+            }
+            Entry e = entries.get(triplet);
+            if ((e != null) && e.isExpired()) {
+                entries.remove(triplet);
+                bytes -= e.bytes;
+                e = null;
+            }
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return e;
+        }
+
+        synchronized boolean containsKey(long triplet) {
+            return entries.containsKey(triplet);
+        }
+
+        synchronized void put(long triplet, Entry entry) {
+            int tileBytes = entry.bytes;
+            Entry old = entries.remove(triplet);
+            if (old != null) {
+                bytes -= old.bytes;
+            }
+            if (tileBytes > maxBytes) {
+                // the tile could never fit, and would only empty the segment
+                evictions++;
+                return;
+            }
+            if ((sketch != null) && (old == null) && (bytes + tileBytes > maxBytes)
+                    && (sketch.frequency(triplet) <= sketch.frequency(entries.eldestKey()))) {
+                // the new tile is less popular than the first one it would
+                // replace, and the segment is left unchanged
+                evictions++;
+                return;
+            }
+            while (bytes + tileBytes > maxBytes) {
+                bytes -= entries.remove(entries.eldestKey()).bytes;
+                evictions++;
+            }
+            entries.put(triplet, entry);
+            bytes += tileBytes;
+        }
+    }
+
+    // approximate access frequencies of keys, in 4-bit counters that are
+    // halved periodically so that old accesses are forgotten
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+            0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int samples;
+
+        FrequencySketch(long maxBytes) {
+            // about ten counters per tile of 64 KB that fits in the cache
+            int width = 64;
+            while ((width < (1 << 20)) && (width < maxBytes / 6553)) {
+                width <<= 1;
+            }
+            this.counters = new byte[DEPTH * width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(long key) {
+            for (int d = 0; d < DEPTH; d++) {
+                int i = index(key, d);
+                if (counters[i] < 15) {
+                    counters[i]++;
+                }
+            }
+            if (++samples == sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                samples /= 2;
+            }
+        }
+
+        int frequency(long key) {
+            int frequency = 15;
+            for (int d = 0; d < DEPTH; d++) {
+                frequency = Math.min(frequency, counters[index(key, d)]);
+            }
+            return frequency;
+        }
+
+        private int index(long key, int d) {
+            long h = (key + d) * SEEDS[d];
+            return d * (mask + 1) + ((int) (h >>> 32) & mask);
+        }
     }
 }
@@ -0,0 +1,149 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads the encoded images of tiles over HTTP. The number of
+ * simultaneous downloads is bounded, connections are kept alive and
+ * reused between downloads, and failed downloads are retried after an
+ * increasing delay.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class TileDownloader {
+
+    private static final String USER_AGENT = "isochrone-tl";
+
+    private final Semaphore connections;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    /**
+     * Class constructor for a downloader using at most two connections,
+     * timeouts of 5 seconds (connection) and 10 seconds (reading), and
+     * three attempts separated by 0.5 and 1 second.
+     */
+    public TileDownloader() {
+        this(2, 5000, 10000, 3, 500);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param maxConnections        the maximum number of simultaneous
+     *                              downloads.
+     * @param connectTimeoutMillis  the time after which a connection
+     *                              attempt fails, in milliseconds.
+     * @param readTimeoutMillis     the time after which a connection
+     *                              on which nothing can be read fails,
+     *                              in milliseconds.
+     * @param maxAttempts           the maximum number of attempts to
+     *                              download a tile.
+     * @param backoffMillis         the delay before the second attempt,
+     *                              which doubles for each further attempt.
+     * @throws IllegalArgumentException if one of the numbers is negative,
+     *                              or the number of connections or of
+     *                              attempts is 0.
+     */
+    public TileDownloader(int maxConnections, int connectTimeoutMillis,
+            int readTimeoutMillis, int maxAttempts, long backoffMillis) {
+        if ((maxConnections <= 0) || (maxAttempts <= 0)) {
+            throw new IllegalArgumentException("invalid number of connections or attempts");
+        }
+        if ((connectTimeoutMillis < 0) || (readTimeoutMillis < 0) || (backoffMillis < 0)) {
+            throw new IllegalArgumentException("invalid timeout or delay");
+        }
+        this.connections = new Semaphore(maxConnections, true);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Downloads the content at the given URL. Missing contents (HTTP
+     * status 404 and the other client errors) are not downloaded again.
+     *
+     * @param url           the URL.
+     * @return              the content.
+     * @throws FileNotFoundException    if there is no content at the URL.
+     * @throws InterruptedIOException   if the thread is interrupted.
+     * @throws IOException  if the last attempt failed.
+     */
+    public byte[] download(URL url) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a connection");
+            }
+            try {
+                return fetch(url);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                if ((attempt == maxAttempts) || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            } finally {
+                connections.release();
+            }
+            try {
+                Thread.sleep(backoffMillis << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to retry");
+            }
+        }
+    }
+
+    private byte[] fetch(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            int status = http.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                // the body is read so that the connection can be reused
+                InputStream error = http.getErrorStream();
+                if (error != null) {
+                    readFully(error);
+                }
+                String message = "HTTP status " + status + ": " + url;
+                boolean clientError = (status >= 400) && (status < 500)
+                        && (status != HttpURLConnection.HTTP_CLIENT_TIMEOUT)
+                        && (status != 429);
+                throw clientError ? new FileNotFoundException(message) : new IOException(message);
+            }
+        }
+        // closing the stream (and not disconnecting) keeps the connection alive
+        return readFully(connection.getInputStream());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
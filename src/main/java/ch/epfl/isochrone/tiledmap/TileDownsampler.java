@@ -0,0 +1,161 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/**
+ * Builds a tile from its four children at the next zoom level, from
+ * every square of 2x2 pixels of the children: their average (box
+ * filter), or their most frequent color for tiles with a palette.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class TileDownsampler {
+
+    private static final int TILE_SIZE = 256;
+    private static final int HALF = TILE_SIZE / 2;
+
+    private TileDownsampler() {}
+
+    /**
+     * Returns the tile covering the given children. If they share an
+     * indexed color model, so does the tile, whose pixels then have the
+     * most frequent index of their 2x2 pixels, the lowest one in case of
+     * a tie: the colors of an isochrone map are those of travel-time
+     * bands, and an average could give a band that none of the pixels had.
+     *
+     * @param zoom      the zoom level of the tile.
+     * @param x         the x coordinate of the tile.
+     * @param y         the y coordinate of the tile.
+     * @param children  the tiles (2x, 2y), (2x + 1, 2y), (2x, 2y + 1) and
+     *                  (2x + 1, 2y + 1) of zoom level zoom + 1.
+     * @return          the tile, or null if the images of the children do
+     *                  not have TILE_SIZE x TILE_SIZE pixels.
+     */
+    static Tile downsample(int zoom, int x, int y, Tile[] children) {
+        for (Tile c : children) {
+            if ((c.image().getWidth() != TILE_SIZE) || (c.image().getHeight() != TILE_SIZE)) {
+                return null;
+            }
+        }
+        long expirationTime = Long.MAX_VALUE;
+        boolean sameOpacity = true;
+        boolean sameImage = true;
+        for (Tile c : children) {
+            expirationTime = Math.min(expirationTime, c.expirationTime());
+            sameOpacity &= c.opacity() == children[0].opacity();
+            sameImage &= c.image() == children[0].image();
+        }
+        if (sameOpacity && sameImage && UniformTiles.isUniform(children[0].image())) {
+            return new Tile(zoom, x, y, children[0].image(), children[0].opacity(),
+                    expirationTime);
+        }
+
+        IndexColorModel palette = sameOpacity ? sharedPalette(children) : null;
+        if (palette != null) {
+            BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                    BufferedImage.TYPE_BYTE_INDEXED, palette);
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int k = 0; k < 4; k++) {
+                byte[] source = ((DataBufferByte) children[k].image().getRaster()
+                        .getDataBuffer()).getData();
+                int offset = (k / 2) * HALF * TILE_SIZE + (k % 2) * HALF;
+                for (int j = 0; j < HALF; j++) {
+                    for (int i = 0; i < HALF; i++) {
+                        int s = 2 * j * TILE_SIZE + 2 * i;
+                        pixels[offset + j * TILE_SIZE + i] = majority(source[s],
+                                source[s + 1], source[s + TILE_SIZE], source[s + TILE_SIZE + 1]);
+                    }
+                }
+            }
+            return new Tile(zoom, x, y, image, children[0].opacity(), expirationTime);
+        }
+
+        // the opacities are baked into the pixels if they differ
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int k = 0; k < 4; k++) {
+            Tile child = sameOpacity
+                    ? new Tile(zoom + 1, 0, 0, children[k].image())
+                    : children[k];
+            int[] source = ((DataBufferInt) FilteringTileProvider.argbCopy(child)
+                    .getRaster().getDataBuffer()).getData();
+            int offset = (k / 2) * HALF * TILE_SIZE + (k % 2) * HALF;
+            for (int j = 0; j < HALF; j++) {
+                for (int i = 0; i < HALF; i++) {
+                    int s = 2 * j * TILE_SIZE + 2 * i;
+                    pixels[offset + j * TILE_SIZE + i] = average(source[s], source[s + 1],
+                            source[s + TILE_SIZE], source[s + TILE_SIZE + 1]);
+                }
+            }
+        }
+        return new Tile(zoom, x, y, image, sameOpacity ? children[0].opacity() : 1,
+                expirationTime);
+    }
+
+    // the color model of the first child if they all have an indexed one
+    // with the same colors, one byte per pixel, and null otherwise; the
+    // models are compared by content, as the children can come from
+    // different renderings (e.g. of the previous query)
+    private static IndexColorModel sharedPalette(Tile[] children) {
+        for (Tile c : children) {
+            BufferedImage image = c.image();
+            if ((image.getType() != BufferedImage.TYPE_BYTE_INDEXED)
+                    || (image.getRaster().getParent() != null)) {
+                return null;
+            }
+        }
+        IndexColorModel palette = (IndexColorModel) children[0].image().getColorModel();
+        int[] colors = null;
+        for (Tile c : children) {
+            IndexColorModel model = (IndexColorModel) c.image().getColorModel();
+            if (model == palette) {
+                continue;
+            }
+            if (colors == null) {
+                colors = new int[palette.getMapSize()];
+                palette.getRGBs(colors);
+            }
+            int[] modelColors = new int[model.getMapSize()];
+            model.getRGBs(modelColors);
+            if (! Arrays.equals(colors, modelColors)) {
+                return null;
+            }
+        }
+        return palette;
+    }
+
+    private static int average(int c1, int c2, int c3, int c4) {
+        int argb = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((c1 >>> shift) & 0xFF) + ((c2 >>> shift) & 0xFF)
+                    + ((c3 >>> shift) & 0xFF) + ((c4 >>> shift) & 0xFF);
+            argb |= ((sum + 2) / 4) << shift;
+        }
+        return argb;
+    }
+
+    // the most frequent of the indices, and the lowest one of the most
+    // frequent ones if there are several
+    private static byte majority(byte a, byte b, byte c, byte d) {
+        byte[] indices = { a, b, c, d };
+        byte best = a;
+        int bestCount = 0;
+        for (byte i : indices) {
+            int count = 0;
+            for (byte j : indices) {
+                if (i == j) {
+                    count++;
+                }
+            }
+            if ((count > bestCount) || ((count == bestCount) && ((i & 0xFF) < (best & 0xFF)))) {
+                best = i;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,164 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Obtains tiles from tile providers in a pool of background threads, so
+ * that slow providers (downloads, renderings) do not block the caller.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class TileLoader {
+
+    /**
+     * The priorities of the requests. The requests of a higher priority
+     * are served before the ones of a lower priority.
+     */
+    public enum Priority {
+        /** For tiles that are currently displayed. */
+        VISIBLE,
+        /** For tiles that might be displayed soon. */
+        PREFETCH
+    }
+
+    /**
+     * Receives the result of a request, in the thread that loaded the
+     * tile. Cancelled requests have no result.
+     */
+    public interface Listener {
+        /**
+         * Called when the tile has been obtained.
+         *
+         * @param tile  the tile.
+         */
+        void tileLoaded(Tile tile);
+
+        /**
+         * Called when the provider failed to provide the tile.
+         *
+         * @param cause the exception thrown by the provider.
+         */
+        void tileFailed(Throwable cause);
+    }
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Class constructor.
+     *
+     * @param numberOfThreads   the number of threads loading tiles.
+     * @throws IllegalArgumentException if the number of threads is not
+     *                          positive.
+     */
+    public TileLoader(int numberOfThreads) {
+        if (numberOfThreads <= 0) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads,
+                0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tile-loader-" + THREAD_NUMBER.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Requests a tile from a provider, with the priority VISIBLE.
+     *
+     * @param provider  the provider of the tile.
+     * @param zoom      the zoom level.
+     * @param x         the x coordinate.
+     * @param y         the y coordinate.
+     * @param listener  the listener notified of the result.
+     * @return          the future tile.
+     * @see #load(TileProvider, int, int, int, Priority, Listener)
+     */
+    public Future<Tile> load(TileProvider provider, int zoom, int x, int y,
+            Listener listener) {
+        return load(provider, zoom, x, y, Priority.VISIBLE, listener);
+    }
+
+    /**
+     * Requests a tile from a provider. The request is served after the
+     * ones of higher priority and the ones of the same priority made
+     * before it; cancelling it before it is served prevents the provider
+     * from being called.
+     *
+     * @param provider  the provider of the tile.
+     * @param zoom      the zoom level.
+     * @param x         the x coordinate.
+     * @param y         the y coordinate.
+     * @param priority  the priority of the request.
+     * @param listener  the listener notified of the result.
+     * @return          the future tile.
+     */
+    public Future<Tile> load(final TileProvider provider, final int zoom,
+            final int x, final int y, Priority priority, Listener listener) {
+        LoadTask task = new LoadTask(new Callable<Tile>() {
+            @Override
+            public Tile call() {
+                return provider.tileAt(zoom, x, y);
+            }
+        }, priority, sequence.getAndIncrement(), listener);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Stops the threads of the loader. The requests that have not been
+     * served yet are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final class LoadTask extends FutureTask<Tile>
+            implements Comparable<LoadTask> {
+        private final Priority priority;
+        private final long sequence;
+        private final Listener listener;
+
+        LoadTask(Callable<Tile> callable, Priority priority, long sequence,
+                Listener listener) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.listener = listener;
+        }
+
+        @Override
+        public int compareTo(LoadTask that) {
+            int c = priority.compareTo(that.priority);
+            return (c != 0) ? c : Long.compare(sequence, that.sequence);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                listener.tileLoaded(get());
+            } catch (ExecutionException e) {
+                listener.tileFailed(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -34,4 +34,12 @@ public final class TransparentTileProvider extends FilteringTileProvider {
         int alphaInt = (int)(255 * alpha);
         return (argb & 0x00FFFFFF) | (alphaInt << 24);
     }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.tiledmap.FilteringTileProvider#constantAlpha()
+     */
+    @Override
+    protected double constantAlpha() {
+        return alpha;
+    }
 }
@@ -0,0 +1,61 @@
+package ch.epfl.isochrone.tiledmap;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Provides shared images for tiles that are filled with a single color,
+ * so that such tiles neither have to be rendered nor allocated again.
+ *
+ * The images returned by this class are shared by all the tiles of the
+ * same color and must therefore never be modified.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class UniformTiles {
+
+    private static final int TILE_SIZE = 256;
+    private static final ConcurrentMap<Integer, BufferedImage> IMAGES =
+        new ConcurrentHashMap<Integer, BufferedImage>();
+
+    private UniformTiles() {}
+
+    /**
+     * Returns the shared image filled with the given color.
+     *
+     * @param argb  the color (in ARGB format).
+     * @return      the shared image of the color.
+     */
+    public static BufferedImage image(int argb) {
+        BufferedImage image = IMAGES.get(argb);
+        if (image == null) {
+            image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(new Color(argb, true));
+            g.setComposite(AlphaComposite.Src);
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.dispose();
+            BufferedImage previous = IMAGES.putIfAbsent(argb, image);
+            if (previous != null) {
+                image = previous;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns true if the given image is one of the shared images.
+     *
+     * @param image the image to be tested.
+     * @return      true if the image is shared and filled with
+     *              a single color.
+     */
+    public static boolean isUniform(BufferedImage image) {
+        return (image.getWidth() == TILE_SIZE) && (image.getHeight() == TILE_SIZE)
+            && (IMAGES.get(image.getRGB(0, 0)) == image);
+    }
+}
@@ -0,0 +1,78 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the remaining bytes of a byte buffer.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // only referenced until the stream is closed, so that a mapping of a
+    // file can be released even if the stream is not
+    private ByteBuffer buffer;
+
+    /**
+     * Class constructor.
+     *
+     * @param buffer    the buffer to be read, starting at its
+     *                  current position.
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (! buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /* (non-Javadoc)
+     * The stream then appears to be at its end.
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public void close() {
+        buffer = EMPTY;
+    }
+}
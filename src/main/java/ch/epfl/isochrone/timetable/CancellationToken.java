@@ -0,0 +1,44 @@
+package ch.epfl.isochrone.timetable;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Signals to long computations (fastest-path searches, tile renderings)
+ * that their result is not wanted anymore, for example because a newer
+ * query replaced the one they were started for. The computations check
+ * the token from time to time and abandon their work once it is
+ * cancelled, unlike an interruption, which would also abort the IO of
+ * the threads running them.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    /**
+     * Cancels the computations using this token. A cancelled token
+     * cannot be reused.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns true if the token has been cancelled.
+     *
+     * @return  true if the token has been cancelled.
+     */
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * Throws an exception if the token has been cancelled.
+     *
+     * @throws CancellationException    if the token has been cancelled.
+     */
+    public void throwIfCancelled() throws CancellationException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+}
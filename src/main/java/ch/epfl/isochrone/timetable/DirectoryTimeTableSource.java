@@ -0,0 +1,66 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timetable source that reads uncompressed files from a directory
+ * on disk. The files are memory-mapped, so that reading them does not
+ * copy their contents through an intermediate kernel buffer.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class DirectoryTimeTableSource implements TimeTableSource {
+
+    private final Path directory;
+
+    /**
+     * Class constructor.
+     *
+     * @param directory the directory containing the timetable files.
+     */
+    public DirectoryTimeTableSource(Path directory) {
+        this.directory = directory;
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#open(java.lang.String)
+     */
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(fileName),
+                StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel has been closed
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ByteBufferInputStream(buffer);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#version(java.lang.String)
+     */
+    @Override
+    public long version(String fileName) throws IOException {
+        return fileVersion(directory.resolve(fileName));
+    }
+
+    // the modification time alone can stay the same when a file is
+    // rewritten, as some file systems only store it to the second and
+    // copies like cp -p keep it: the size of the file and its identity,
+    // which changes when it is replaced by a rename, are mixed into it
+    static long fileVersion(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long version = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        version = 31 * version + attributes.size();
+        Object key = attributes.fileKey();
+        return 31 * version + ((key != null) ? key.hashCode() : 0);
+    }
+}
@@ -154,6 +154,33 @@ public final class FastestPathTree {
             arrivalTime.get(stop) : SecondsPastMidnight.INFINITE;
     }
 
+    /**
+     * Returns the stops whose travel time, i.e. their arrival time minus
+     * the starting time, differs between this tree and another one. The
+     * stops that only one of the trees reaches are included. Trees with
+     * the same travel times produce the same isochrone map, whatever
+     * their starting times.
+     *
+     * @param that  the other tree.
+     * @return      the stops whose travel time changed.
+     */
+    public Set<Stop> changedStops(FastestPathTree that) {
+        Set<Stop> changed = new HashSet<Stop>();
+        for (Map.Entry<Stop, Integer> e : arrivalTime.entrySet()) {
+            Integer other = that.arrivalTime.get(e.getKey());
+            if ((other == null) || (e.getValue() - startingTime()
+                    != other - that.startingTime())) {
+                changed.add(e.getKey());
+            }
+        }
+        for (Stop stop : that.arrivalTime.keySet()) {
+            if (! arrivalTime.containsKey(stop)) {
+                changed.add(stop);
+            }
+        }
+        return changed;
+    }
+
     /**
      * Returns the path from the starting stop to a given destination.
      *
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.PriorityQueue;
 import java.util.Comparator;
+import java.util.concurrent.CancellationException;
 
 import static java.lang.Math.rint;
 
@@ -170,6 +171,26 @@ public final class Graph {
      */
     public FastestPathTree fastestPaths(Stop startingStop, int departureTime)
             throws IllegalArgumentException {
+        return fastestPaths(startingStop, departureTime, new CancellationToken());
+    }
+
+    /**
+     * Returns the fastest path tree for a given starting stop and a
+     * given departure time, unless the search is cancelled.
+     *
+     * @param startingStop  the root of the fastest path tree.
+     * @param departureTime the departure time in SPM.
+     * @param token         the token checked after every stop whose
+     *                      arrival time is determined.
+     * @return              the fastest path tree with startingStop
+     *                      as its root.
+     * @throws IllegalArgumentException if the starting stop is not
+     *                      contained in the stop set.
+     * @throws CancellationException    if the token is cancelled before
+     *                      the search is finished.
+     */
+    public FastestPathTree fastestPaths(Stop startingStop, int departureTime,
+            CancellationToken token) throws IllegalArgumentException, CancellationException {
         if (! stops.contains(startingStop)) {
             throw new IllegalArgumentException(
                     "Starting stop is not contained in stops");
@@ -229,6 +250,7 @@ public final class Graph {
         boolean finiteArrivalTime = true;
         do {
             // PriorityQueue.poll() implements EXTRACT-MIN(Q)
+            token.throwIfCancelled();
             Stop u = q.poll();
             if (treeBuilder.arrivalTime(u) < SecondsPastMidnight.INFINITE) {
                 for (GraphEdge e : outgoingEdges.get(u)) {
@@ -1,9 +1,9 @@
 package ch.epfl.isochrone.timetable;
 
 import java.util.Set;
-import java.util.HashSet;
 import static java.util.Arrays.sort;
 import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
 
 import static ch.epfl.isochrone.math.Math.divF;
 import static ch.epfl.isochrone.math.Math.modF;
@@ -30,9 +30,15 @@ final class GraphEdge {
      */
     public static class Builder {
 
+        private static final int INITIAL_CAPACITY = 8;
+
         private final Stop destination;
         private int walkingTime;
-        private final Set<Integer> packedTrips;
+        // growable buffer of packed trips, kept unboxed; duplicates are
+        // only removed when the edge is built
+        private int[] packedTrips;
+        private int numberOfTrips;
+        private boolean sorted;
 
         /**
          * Class constructor.
@@ -42,7 +48,9 @@ final class GraphEdge {
         public Builder(Stop destination) {
             this.destination = destination;
             this.walkingTime = -1;
-            this.packedTrips = new HashSet<Integer>();
+            this.packedTrips = new int[0];
+            this.numberOfTrips = 0;
+            this.sorted = true;
         }
 
         /**
@@ -73,7 +81,17 @@ final class GraphEdge {
          */
         public GraphEdge.Builder addTrip(int departureTime, int arrivalTime)
                 throws IllegalArgumentException {
-            packedTrips.add(packTrip(departureTime, arrivalTime));
+            int packedTrip = packTrip(departureTime, arrivalTime);
+            if (numberOfTrips == packedTrips.length) {
+                packedTrips = copyOf(packedTrips,
+                        Math.max(INITIAL_CAPACITY, 2 * numberOfTrips));
+            }
+            // trips of a feed sorted by departure time arrive in order,
+            // in which case the edge can be built without sorting them
+            if ((numberOfTrips > 0) && (packedTrip < packedTrips[numberOfTrips - 1])) {
+                sorted = false;
+            }
+            packedTrips[numberOfTrips++] = packedTrip;
             return this;
         }
 
@@ -84,7 +102,11 @@ final class GraphEdge {
          *          stored in the builder.
          */
         public GraphEdge build() {
-            return new GraphEdge(destination, walkingTime, packedTrips);
+            int[] trips = copyOf(packedTrips, numberOfTrips);
+            if (! sorted) {
+                sort(trips);
+            }
+            return new GraphEdge(destination, walkingTime, removeDuplicates(trips));
         }
     }
 
@@ -112,6 +134,30 @@ final class GraphEdge {
         sort(this.packedTrips);
     }
 
+    private GraphEdge(Stop destination, int walkingTime, int[] sortedPackedTrips)
+            throws IllegalArgumentException {
+        if (walkingTime < -1) {
+            throw new IllegalArgumentException("Invalid walking time");
+        }
+        this.destination = destination;
+        this.walkingTime = walkingTime;
+        // the array is owned by the edge, which never modifies it
+        this.packedTrips = sortedPackedTrips;
+    }
+
+    private static int[] removeDuplicates(int[] sortedTrips) {
+        if (sortedTrips.length < 2) {
+            return sortedTrips;
+        }
+        int n = 1;
+        for (int i = 1; i < sortedTrips.length; i++) {
+            if (sortedTrips[i] != sortedTrips[n - 1]) {
+                sortedTrips[n++] = sortedTrips[i];
+            }
+        }
+        return (n == sortedTrips.length) ? sortedTrips : copyOf(sortedTrips, n);
+    }
+
     private static int[] convertIntegerToInt(Set<Integer> integerSet) {
         int[] intSet = new int[integerSet.size()];
         int i = 0;
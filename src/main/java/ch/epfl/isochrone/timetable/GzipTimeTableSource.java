@@ -0,0 +1,54 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A timetable source that reads gzip-compressed files from a directory
+ * on disk. The file "stops.csv" is for example read from "stops.csv.gz".
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class GzipTimeTableSource implements TimeTableSource {
+
+    private static final String EXTENSION = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    /**
+     * Class constructor.
+     *
+     * @param directory the directory containing the compressed
+     *                  timetable files.
+     */
+    public GzipTimeTableSource(Path directory) {
+        this.directory = directory;
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#open(java.lang.String)
+     */
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        InputStream inStream =
+            Files.newInputStream(directory.resolve(fileName + EXTENSION));
+        try {
+            return new GZIPInputStream(inStream, BUFFER_SIZE);
+        } catch (IOException e) {
+            inStream.close();
+            throw e;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#version(java.lang.String)
+     */
+    @Override
+    public long version(String fileName) throws IOException {
+        return DirectoryTimeTableSource.fileVersion(directory.resolve(fileName + EXTENSION));
+    }
+}
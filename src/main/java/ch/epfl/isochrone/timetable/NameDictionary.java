@@ -0,0 +1,151 @@
+package ch.epfl.isochrone.timetable;
+
+import java.util.Arrays;
+
+/**
+ * A dictionary that assigns dense integer identifiers (0, 1, 2, ...) to
+ * names. Names can be looked up directly from a range of characters of
+ * a larger sequence, e.g. a field of a line being parsed, without first
+ * extracting them into a string of their own.
+ *
+ * @author Jakob Bauer (223590)
+ */
+final class NameDictionary {
+
+    private String[] names;
+    private int[] hashes;
+    // open addressing table with linear probing; each slot contains
+    // the identifier of a name plus one, or zero if it is empty
+    private int[] slots;
+    private int size;
+
+    /**
+     * Class constructor.
+     *
+     * @param expectedSize  the expected number of names.
+     */
+    public NameDictionary(int expectedSize) {
+        int capacity = Math.max(1, expectedSize);
+        this.names = new String[capacity];
+        this.hashes = new int[capacity];
+        this.slots = new int[tableSize(capacity)];
+        this.size = 0;
+    }
+
+    /**
+     * Adds a name to the dictionary, unless it is already contained in it.
+     *
+     * @param name  the name to be added.
+     * @return      the identifier of the name.
+     */
+    public int add(String name) {
+        int hash = name.hashCode();
+        int id = find(name, 0, name.length(), hash);
+        if (id >= 0) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, 2 * size);
+            hashes = Arrays.copyOf(hashes, 2 * size);
+        }
+        if (2 * (size + 1) > slots.length) {
+            rehash(2 * slots.length);
+        }
+        id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        insert(id);
+        return id;
+    }
+
+    /**
+     * Returns the identifier of the name formed by the characters of
+     * the given sequence between start (inclusive) and end (exclusive).
+     *
+     * @param s     the sequence containing the name.
+     * @param start the index of the first character of the name.
+     * @param end   the index following the last character of the name.
+     * @return      the identifier of the name, or -1 if the name is not
+     *              contained in the dictionary.
+     */
+    public int id(CharSequence s, int start, int end) {
+        // same hash function as String.hashCode()
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return find(s, start, end, hash);
+    }
+
+    /**
+     * Returns the name with the given identifier.
+     *
+     * @param id    the identifier.
+     * @return      the name with the given identifier.
+     * @throws IndexOutOfBoundsException if the identifier is not valid.
+     */
+    public String name(int id) {
+        if ((id < 0) || (id >= size)) {
+            throw new IndexOutOfBoundsException("Invalid identifier: " + id);
+        }
+        return names[id];
+    }
+
+    /**
+     * Returns the number of names in the dictionary.
+     *
+     * @return  the number of names in the dictionary.
+     */
+    public int size() { return size; }
+
+    private int find(CharSequence s, int start, int end, int hash) {
+        int mask = slots.length - 1;
+        for (int i = mix(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if ((hashes[id] == hash) && regionEquals(names[id], s, start, end)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int id) {
+        int mask = slots.length - 1;
+        int i = mix(hashes[id]) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id + 1;
+    }
+
+    private void rehash(int newLength) {
+        slots = new int[newLength];
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    private static boolean regionEquals(String name, CharSequence s,
+            int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != s.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        // spreads the bits of String.hashCode(), which are poorly
+        // distributed in the low bits for similar names
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+    }
+}
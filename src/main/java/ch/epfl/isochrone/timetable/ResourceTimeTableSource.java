@@ -0,0 +1,57 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * A timetable source that reads its files from the classpath.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class ResourceTimeTableSource implements TimeTableSource {
+
+    private final String baseResourceName;
+
+    /**
+     * Class constructor.
+     *
+     * @param baseResourceName  the prefix of the location of the
+     *                          resource files (e.g. "/time-table/").
+     */
+    public ResourceTimeTableSource(String baseResourceName) {
+        this.baseResourceName = baseResourceName;
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#open(java.lang.String)
+     */
+    @Override
+    public InputStream open(String fileName) throws FileNotFoundException {
+        String resourceName = baseResourceName + fileName;
+        InputStream inStream = getClass().getResourceAsStream(resourceName);
+        if (inStream == null) {
+            throw new FileNotFoundException("Resource not found: " + resourceName);
+        }
+        return inStream;
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#version(java.lang.String)
+     */
+    @Override
+    public long version(String fileName) throws IOException {
+        String resourceName = baseResourceName + fileName;
+        URL url = getClass().getResource(resourceName);
+        if (url == null) {
+            throw new FileNotFoundException("Resource not found: " + resourceName);
+        }
+        URLConnection connection = url.openConnection();
+        long version = connection.getLastModified();
+        // querying the headers may have opened the resource
+        connection.getInputStream().close();
+        return version;
+    }
+}
@@ -200,6 +200,23 @@ public final class Service {
                     || includedDates.contains(date));
     }
 
+    /**
+     * Returns true if the given service has the same name, service period,
+     * operating days and exceptions as this service.
+     *
+     * @param that  the service to be compared with this service.
+     * @return      true if both services operate on exactly the same dates
+     *              under the same name.
+     */
+    public boolean hasSameSchedule(Service that) {
+        return name.equals(that.name)
+            && startingDate.equals(that.startingDate)
+            && endingDate.equals(that.endingDate)
+            && operatingDays.equals(that.operatingDays)
+            && excludedDates.equals(that.excludedDates)
+            && includedDates.equals(that.includedDates);
+    }
+
     /**
      * Returns the name of the service.
      *
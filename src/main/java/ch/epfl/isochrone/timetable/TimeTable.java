@@ -1,8 +1,10 @@
 package ch.epfl.isochrone.timetable;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A timetable with stops and services.
@@ -13,6 +15,8 @@ public final class TimeTable {
 
     private final Set<Stop> stops;
     private final Collection<Service> services;
+    // index of the services active on the dates queried so far
+    private final Map<Date, Set<Service>> servicesByDate;
 
     /**
      * Builder class for the Timetable class.
@@ -74,6 +78,7 @@ public final class TimeTable {
     public TimeTable(Set<Stop> stops, Collection<Service> services) {
         this.stops = java.util.Collections.unmodifiableSet(new HashSet<Stop>(stops));
         this.services = java.util.Collections.unmodifiableSet(new HashSet<Service>(services));
+        this.servicesByDate = new ConcurrentHashMap<Date, Set<Service>>();
     }
 
     /**
@@ -92,12 +97,58 @@ public final class TimeTable {
      * @return      the services active on the given date.
      */
     public Set<Service> servicesForDate(Date date) {
-        Set<Service> activeServices = new HashSet<Service>();
-        for (Service i : services) {
-            if (i.isOperatingOn(date)) {
-                activeServices.add(i);
+        Set<Service> activeServices = servicesByDate.get(date);
+        if (activeServices == null) {
+            activeServices = new HashSet<Service>();
+            for (Service i : services) {
+                if (i.isOperatingOn(date)) {
+                    activeServices.add(i);
+                }
             }
+            activeServices = java.util.Collections.unmodifiableSet(activeServices);
+            servicesByDate.put(date, activeServices);
         }
-        return java.util.Collections.unmodifiableSet(activeServices);
+        return activeServices;
+    }
+
+    /**
+     * Returns all the services of the timetable.
+     *
+     * @return  the services of the timetable.
+     */
+    Collection<Service> services() {
+        return services;
+    }
+
+    /**
+     * Returns a timetable with the same stops as this one, but with the
+     * given services. The entries of the calendar index are taken over
+     * for all the dates on which none of the services that were added or
+     * removed operates.
+     *
+     * @param newServices   the services of the new timetable.
+     * @return              a timetable with the new services.
+     */
+    TimeTable withServices(Collection<Service> newServices) {
+        TimeTable timeTable = new TimeTable(stops, newServices);
+        Set<Service> changed = new HashSet<Service>(services);
+        changed.removeAll(timeTable.services);
+        Set<Service> added = new HashSet<Service>(timeTable.services);
+        added.removeAll(services);
+        changed.addAll(added);
+
+        for (Map.Entry<Date, Set<Service>> e : servicesByDate.entrySet()) {
+            boolean affected = false;
+            for (Service s : changed) {
+                if (s.isOperatingOn(e.getKey())) {
+                    affected = true;
+                    break;
+                }
+            }
+            if (! affected) {
+                timeTable.servicesByDate.put(e.getKey(), e.getValue());
+            }
+        }
+        return timeTable;
     }
 }
@@ -1,9 +1,10 @@
 package ch.epfl.isochrone.timetable;
 
 import java.util.Set;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 
 import java.io.InputStream;
 import java.io.BufferedReader;
@@ -21,20 +22,30 @@ import ch.epfl.isochrone.geo.PointWGS84;
  */
 public final class TimeTableReader {
 
-    private final String baseResourceName;
+    private final TimeTableSource source;
     private final String stopsName;
     private final String stopTimesName;
     private final String calendarName;
     private final String calendarDatesName;
 
     /**
-     * Class constructor.
+     * Class constructor for timetables stored as resource files
+     * on the classpath.
      *
      * @param baseResourceName  the prefix of the location of the
      *                          resource files.
      */
     public TimeTableReader(String baseResourceName) {
-        this.baseResourceName   = baseResourceName;
+        this(new ResourceTimeTableSource(baseResourceName));
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param source    the source from which the timetable files are read.
+     */
+    public TimeTableReader(TimeTableSource source) {
+        this.source             = source;
         this.stopsName          = "stops.csv";
         this.stopTimesName      = "stop_times.csv";
         this.calendarName       = "calendar.csv";
@@ -52,10 +63,41 @@ public final class TimeTableReader {
     public TimeTable readTimeTable() throws IOException {
         TimeTable.Builder timeTableBuilder = new TimeTable.Builder();
         readStops(timeTableBuilder);
-        readCalendarDates(timeTableBuilder);
+        for (Service s : readServices()) {
+            timeTableBuilder.addService(s);
+        }
         return timeTableBuilder.build();
     }
 
+    /**
+     * Returns a TimeTable with the stops of the given timetable and the
+     * services that are currently stored in the calendar resource files.
+     * Only the calendar files are read. Services whose schedule did not
+     * change are taken over from the given timetable, so that the
+     * returned timetable only differs from it in the services that
+     * actually changed.
+     *
+     * @param timeTable     the timetable to be updated.
+     * @return              a TimeTable with updated services.
+     * @throws IOException  if there is an IO or formatting problem.
+     */
+    public TimeTable readServiceChanges(TimeTable timeTable) throws IOException {
+        Map<String, Service> oldServices = new HashMap<String, Service>();
+        for (Service s : timeTable.services()) {
+            oldServices.put(s.name(), s);
+        }
+        List<Service> services = new ArrayList<Service>();
+        for (Service s : readServices()) {
+            Service oldService = oldServices.get(s.name());
+            if ((oldService != null) && oldService.hasSameSchedule(s)) {
+                services.add(oldService);
+            } else {
+                services.add(s);
+            }
+        }
+        return timeTable.withServices(services);
+    }
+
     /**
      * Returns a graph for the stops and services passed as arguments.
      *
@@ -76,141 +118,187 @@ public final class TimeTableReader {
     }
 
     private Map<String, Service.Builder> readCalendar() throws IOException {
-        String resourceName = baseResourceName + calendarName;
-        BufferedReader reader = openReader(resourceName);
+        String resourceName = calendarName;
         Map<String, Service.Builder> services = new HashMap<String, Service.Builder>();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            /* 2013-SU-Semaine-50-0000100;0;0;0;0;1;0;0;20130923;20131213 */
-            /* 2013-SU-Semaine-50-1111000;1;1;1;1;0;0;0;20130923;20131213 */
-            /* 2013-SU-Semaine-50-0010000;0;0;1;0;0;0;0;20130923;20131213 */
-            String[] fields = line.split(";");
-            if (fields.length != 10) {
-                throw new IOException("Error while reading "
-                        + resourceName + "; wrong number of fields");
-            }
-            String name = fields[0];
-            Date startingDate = extractDate(fields[8]);
-            Date endingDate = extractDate(fields[9]);
-            Service.Builder service =
-                new Service.Builder(name, startingDate, endingDate);
-            int[] operatingDays = new int[7];
-            for (int k = 0; k < 7; k++) {
-                operatingDays[k] = Integer.parseInt(fields[k+1]);
-            }
-            for (int k = 0; k < operatingDays.length; k++) {
-                if (operatingDays[k] == 1) {
-                    Date.DayOfWeek dayOfWeek = intToDay(k+1);
-                    service.addOperatingDay(dayOfWeek);
+        BufferedReader reader = openReader(resourceName);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* 2013-SU-Semaine-50-0000100;0;0;0;0;1;0;0;20130923;20131213 */
+                /* 2013-SU-Semaine-50-1111000;1;1;1;1;0;0;0;20130923;20131213 */
+                /* 2013-SU-Semaine-50-0010000;0;0;1;0;0;0;0;20130923;20131213 */
+                String[] fields = line.split(";");
+                if (fields.length != 10) {
+                    throw new IOException("Error while reading "
+                            + resourceName + "; wrong number of fields");
+                }
+                String name = fields[0];
+                Date startingDate = extractDate(fields[8]);
+                Date endingDate = extractDate(fields[9]);
+                Service.Builder service =
+                    new Service.Builder(name, startingDate, endingDate);
+                int[] operatingDays = new int[7];
+                for (int k = 0; k < 7; k++) {
+                    operatingDays[k] = Integer.parseInt(fields[k+1]);
                 }
+                for (int k = 0; k < operatingDays.length; k++) {
+                    if (operatingDays[k] == 1) {
+                        Date.DayOfWeek dayOfWeek = intToDay(k+1);
+                        service.addOperatingDay(dayOfWeek);
+                    }
+                }
+                services.put(service.name(), service);
             }
-            services.put(service.name(), service);
+        } finally {
+            reader.close();
         }
-        reader.close();
         return services;
     }
 
-    private void readCalendarDates(TimeTable.Builder timeTableBuilder)
-            throws IOException {
-        String resourceName = baseResourceName + calendarDatesName;
-        BufferedReader reader = openReader(resourceName);
+    private List<Service> readServices() throws IOException {
+        String resourceName = calendarDatesName;
         Map<String, Service.Builder> services = readCalendar();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            /* 2013-SU-Semaine-50-0000100;20131014;2 */
-            /* 2013-SU-Semaine-50-1111000;20131014;2 */
-            /* 2013-SU-Semaine-50-0010000;20131014;2 */
-            String[] fields = line.split(";");
-            if (fields.length != 3) {
-                throw new IOException("Error while reading "
-                        + resourceName + "; wrong number of fields");
-            }
-            String name = fields[0];
-            Date date = extractDate(fields[1]);
-            int exceptionType = Integer.parseInt(fields[2]);
-            if (exceptionType == 1) {
-                services.get(name).addIncludedDate(date);
-            } else if (exceptionType == 2) {
-                services.get(name).addExcludedDate(date);
-            } else {
-                throw new IOException("Invalid exception type: "
-                        + exceptionType);
+        BufferedReader reader = openReader(resourceName);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* 2013-SU-Semaine-50-0000100;20131014;2 */
+                /* 2013-SU-Semaine-50-1111000;20131014;2 */
+                /* 2013-SU-Semaine-50-0010000;20131014;2 */
+                String[] fields = line.split(";");
+                if (fields.length != 3) {
+                    throw new IOException("Error while reading "
+                            + resourceName + "; wrong number of fields");
+                }
+                String name = fields[0];
+                Date date = extractDate(fields[1]);
+                int exceptionType = Integer.parseInt(fields[2]);
+                if (exceptionType == 1) {
+                    services.get(name).addIncludedDate(date);
+                } else if (exceptionType == 2) {
+                    services.get(name).addExcludedDate(date);
+                } else {
+                    throw new IOException("Invalid exception type: "
+                            + exceptionType);
+                }
             }
+        } finally {
+            reader.close();
         }
-        reader.close();
 
+        List<Service> result = new ArrayList<Service>();
         for (Service.Builder sb : services.values()) {
-            timeTableBuilder.addService(sb.build());
+            result.add(sb.build());
         }
+        return result;
     }
 
     private void readStops(TimeTable.Builder timeTableBuilder)
             throws IOException {
-        String resourceName = baseResourceName + stopsName;
+        String resourceName = stopsName;
         BufferedReader reader = openReader(resourceName);
-        String line;
-        while ((line = reader.readLine()) != null) {
-            /* 1er Août;46.5367366879;6.58201906962 */
-            /* 1er Mai;46.5407686803;6.58344370604 */
-            /* Abeilles;46.5411232548;6.64799239616 */
-            String[] fields = line.split(";");
-            if (fields.length != 3) {
-                throw new IOException("Error while reading "
-                        + resourceName + "; wrong number of fields");
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* 1er Août;46.5367366879;6.58201906962 */
+                /* 1er Mai;46.5407686803;6.58344370604 */
+                /* Abeilles;46.5411232548;6.64799239616 */
+                String[] fields = line.split(";");
+                if (fields.length != 3) {
+                    throw new IOException("Error while reading "
+                            + resourceName + "; wrong number of fields");
+                }
+                String name = fields[0];
+                double latitude = Math.toRadians(Double.parseDouble(fields[1]));
+                double longitude = Math.toRadians(Double.parseDouble(fields[2]));
+                PointWGS84 position = new PointWGS84(longitude, latitude);
+                Stop stop = new Stop(name, position);
+                timeTableBuilder.addStop(stop);
             }
-            String name = fields[0];
-            double latitude = Math.toRadians(Double.parseDouble(fields[1]));
-            double longitude = Math.toRadians(Double.parseDouble(fields[2]));
-            PointWGS84 position = new PointWGS84(longitude, latitude);
-            Stop stop = new Stop(name, position);
-            timeTableBuilder.addStop(stop);
+        } finally {
+            reader.close();
         }
-        reader.close();
     }
 
     private void readStopTimes(Graph.Builder graphBuilder, Set<Stop> stops,
             Set<Service> services) throws IOException {
-        Map<String, Stop> stopMap = new HashMap<String, Stop>();
+        // the names are only resolved to identifiers, and the identifiers
+        // to stops, so that the lines can be processed without creating
+        // any string besides the line itself
+        NameDictionary stopIds = new NameDictionary(stops.size());
+        Stop[] stopsById = new Stop[stops.size()];
         for (Stop s : stops) {
-            stopMap.put(s.name(), s);
+            stopsById[stopIds.add(s.name())] = s;
         }
-        Set<String> stopNames = new HashSet<String>(stopMap.keySet());
-        Set<String> serviceNames = new HashSet<String>();
+        NameDictionary serviceIds = new NameDictionary(services.size());
         for (Service s : services) {
-            serviceNames.add(s.name());
+            serviceIds.add(s.name());
         }
 
-        String resourceName = baseResourceName + stopTimesName;
+        String resourceName = stopTimesName;
         BufferedReader reader = openReader(resourceName);
-        String line;
-        while ((line = reader.readLine()) != null) {
-            /* 2013-SU-Semaine-50-0000100;Croisettes;87120;Vennes;87181 */
-            /* 2013-SU-Semaine-50-0000100;Vennes;87209;Fourmi;87293 */
-            /* 2013-SU-Semaine-50-0000100;Fourmi;87316;Sallaz;87417 */
-            String[] fields = line.split(";");
-            if (fields.length != 5) {
-                throw new IOException("Error while reading " + resourceName
-                        + "; wrong number of fields: " + fields.length);
+        try {
+            int[] separators = new int[4];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* 2013-SU-Semaine-50-0000100;Croisettes;87120;Vennes;87181 */
+                /* 2013-SU-Semaine-50-0000100;Vennes;87209;Fourmi;87293 */
+                /* 2013-SU-Semaine-50-0000100;Fourmi;87316;Sallaz;87417 */
+                int numberOfSeparators = 0;
+                int end = line.length();
+                for (int i = 0; i < line.length(); i++) {
+                    if (line.charAt(i) == ';') {
+                        if (numberOfSeparators == separators.length) {
+                            // trailing separators, like the empty trailing
+                            // fields dropped by String.split, are ignored
+                            end = i;
+                            while ((i < line.length()) && (line.charAt(i) == ';')) {
+                                i++;
+                            }
+                            if (i < line.length()) {
+                                numberOfSeparators++;
+                            }
+                            break;
+                        }
+                        separators[numberOfSeparators++] = i;
+                    }
+                }
+                if (numberOfSeparators != separators.length) {
+                    throw new IOException("Error while reading " + resourceName
+                            + "; wrong number of fields: " + (numberOfSeparators + 1));
+                }
+                int serviceId  = serviceIds.id(line, 0, separators[0]);
+                int fromStopId = stopIds.id(line, separators[0] + 1, separators[1]);
+                int toStopId   = stopIds.id(line, separators[2] + 1, separators[3]);
+                if ((serviceId >= 0) && (fromStopId >= 0) && (toStopId >= 0)) {
+                    int departureTime = parseInt(line, separators[1] + 1, separators[2]);
+                    int arrivalTime   = parseInt(line, separators[3] + 1, end);
+                    graphBuilder.addTripEdge(stopsById[fromStopId],
+                            stopsById[toStopId], departureTime, arrivalTime);
+                }
             }
-            String serviceName  = fields[0];
-            String fromStopName = fields[1];
-            String toStopName   = fields[3];
-            if (serviceNames.contains(serviceName)
-                    && stopNames.contains(fromStopName)
-                    && stopNames.contains(toStopName)) {
-                Stop fromStop   = stopMap.get(fromStopName);
-                Stop toStop     = stopMap.get(toStopName);
-                int departureTime   = Integer.parseInt(fields[2]);
-                int arrivalTime     = Integer.parseInt(fields[4]);
-                graphBuilder.addTripEdge(fromStop, toStop,
-                        departureTime, arrivalTime);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int parseInt(String s, int start, int end) throws IOException {
+        if (start >= end) {
+            throw new IOException("Invalid number: empty field");
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9) || (value > (Integer.MAX_VALUE - digit) / 10)) {
+                throw new IOException("Invalid number: " + s.substring(start, end));
             }
+            value = 10 * value + digit;
         }
-        reader.close();
+        return value;
     }
 
-    private BufferedReader openReader(String resourceName) {
-        InputStream inStream = getClass().getResourceAsStream(resourceName);
+    private BufferedReader openReader(String fileName) throws IOException {
+        InputStream inStream = source.open(fileName);
         return new BufferedReader(new
                 InputStreamReader(inStream, StandardCharsets.UTF_8));
     }
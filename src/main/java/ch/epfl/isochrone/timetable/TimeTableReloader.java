@@ -0,0 +1,359 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps an up-to-date timetable, and the graphs derived from it, for a
+ * timetable source whose files may be replaced while the application
+ * is running.
+ *
+ * The timetable and its graphs are published as an immutable snapshot.
+ * When the source changes, a new snapshot is built on a background
+ * thread and then swapped in atomically: queries that are running keep
+ * using the snapshot they obtained, new queries see the new one.
+ * If only the calendar files changed, the stops are taken over from the
+ * previous snapshot and only the graphs of the dates whose active
+ * services changed are rebuilt.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class TimeTableReloader {
+
+    private static final List<String> FILE_NAMES = Arrays.asList(
+            "stops.csv", "stop_times.csv", "calendar.csv", "calendar_dates.csv");
+    private static final List<String> GRAPH_FILE_NAMES = Arrays.asList(
+            "stops.csv", "stop_times.csv");
+
+    private final TimeTableSource source;
+    private final TimeTableReader reader;
+    private final int walkingTime;
+    private final double walkingSpeed;
+    private final AtomicReference<Snapshot> current;
+    private final List<Listener> listeners;
+    private final AtomicLong reloadCount;
+    private final AtomicLong failureCount;
+    private final AtomicLong lastReloadNanos;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Receives notifications about the reloads of a timetable.
+     *
+     * @author Jakob Bauer (223590)
+     */
+    public interface Listener {
+
+        /**
+         * Called after a new snapshot has been published.
+         *
+         * @param snapshot      the new snapshot.
+         * @param durationNanos the time it took to build the snapshot,
+         *                      in nanoseconds.
+         */
+        void reloaded(Snapshot snapshot, long durationNanos);
+
+        /**
+         * Called when the timetable could not be reloaded. The previous
+         * snapshot remains in use.
+         *
+         * @param e     the cause of the failure.
+         */
+        void reloadFailed(Exception e);
+    }
+
+    /**
+     * An immutable version of the timetable together with the graphs
+     * that have been built for it, one per date.
+     *
+     * @author Jakob Bauer (223590)
+     */
+    public final class Snapshot {
+
+        private final long generation;
+        private final Map<String, Long> versions;
+        private final TimeTable timeTable;
+        private final ConcurrentHashMap<Date, Graph> graphs;
+
+        private Snapshot(long generation, Map<String, Long> versions,
+                TimeTable timeTable) {
+            this.generation = generation;
+            this.versions = versions;
+            this.timeTable = timeTable;
+            this.graphs = new ConcurrentHashMap<Date, Graph>();
+        }
+
+        /**
+         * Returns the generation of the snapshot, which is incremented
+         * on every reload.
+         *
+         * @return  the generation of the snapshot.
+         */
+        public long generation() { return generation; }
+
+        /**
+         * Returns the timetable of the snapshot.
+         *
+         * @return  the timetable of the snapshot.
+         */
+        public TimeTable timeTable() { return timeTable; }
+
+        /**
+         * Returns the graph for the services active on the given date.
+         * The graph is built the first time it is requested, and then
+         * kept for the lifetime of the snapshot.
+         *
+         * The graph is read from the current files of the source, so it
+         * can only be built while they are those of the snapshot; once
+         * they have been replaced, only a newer snapshot can provide it.
+         *
+         * @param date          the date.
+         * @return              the graph for the given date.
+         * @throws IOException  if there is an IO or formatting problem, or
+         *                      if the stops or the stop times of the source
+         *                      have changed since the snapshot was taken.
+         */
+        public Graph graphForDate(Date date) throws IOException {
+            Graph graph = graphs.get(date);
+            if (graph == null) {
+                synchronized (graphs) {
+                    graph = graphs.get(date);
+                    if (graph == null) {
+                        // checked before and after, as the files could be
+                        // replaced while they are read
+                        checkGraphFiles();
+                        graph = reader.readGraphForServices(timeTable.stops(),
+                                timeTable.servicesForDate(date),
+                                walkingTime, walkingSpeed);
+                        checkGraphFiles();
+                        graphs.put(date, graph);
+                    }
+                }
+            }
+            return graph;
+        }
+
+        private void checkGraphFiles() throws IOException {
+            for (String fileName : GRAPH_FILE_NAMES) {
+                if (source.version(fileName) != versions.get(fileName)) {
+                    throw new IOException("timetable changed since snapshot "
+                            + generation + " was taken: " + fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Class constructor. The timetable is read once before the
+     * constructor returns.
+     *
+     * @param source        the source of the timetable files.
+     * @param walkingTime   the maximum walking time used for the graphs.
+     * @param walkingSpeed  the walking speed in meters per second used
+     *                      for the graphs.
+     * @throws IOException  if there is an IO or formatting problem.
+     */
+    public TimeTableReloader(TimeTableSource source, int walkingTime,
+            double walkingSpeed) throws IOException {
+        this.source = source;
+        this.reader = new TimeTableReader(source);
+        this.walkingTime = walkingTime;
+        this.walkingSpeed = walkingSpeed;
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        this.reloadCount = new AtomicLong();
+        this.failureCount = new AtomicLong();
+        this.lastReloadNanos = new AtomicLong();
+        Map<String, Long> versions = readVersions();
+        this.current = new AtomicReference<Snapshot>(
+                new Snapshot(0, versions, reader.readTimeTable()));
+    }
+
+    /**
+     * Returns the current snapshot. Callers should obtain the snapshot
+     * once per query and use it throughout, so that the query sees a
+     * consistent timetable and graph.
+     *
+     * @return  the current snapshot.
+     */
+    public Snapshot current() { return current.get(); }
+
+    /**
+     * Adds a listener that is notified of reloads and failures.
+     *
+     * @param listener  the listener to be added.
+     * @return          the reloader with the listener added.
+     */
+    public TimeTableReloader addListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Starts watching the source on a background thread, checking it
+     * for changes at the given interval.
+     *
+     * @param period    the interval between two checks.
+     * @param unit      the unit of the interval.
+     * @throws IllegalStateException if the reloader is already watching.
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (watcher != null) {
+            throw new IllegalStateException("reloader already started");
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "timetable-reloader");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // anything escaping would silently cancel the later checks,
+                // e.g. the InternalError thrown by a read of a mapped file
+                // that was truncated in place
+                try {
+                    reloadIfChanged();
+                } catch (Throwable t) {
+                    try {
+                        failed(new IOException("timetable reload failed", t));
+                    } catch (Throwable u) {
+                        u.printStackTrace();
+                    }
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops watching the source. The current snapshot remains available.
+     */
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Checks whether the source has changed since the current snapshot
+     * was built and, if so, reloads it. Failures are reported to the
+     * listeners and leave the current snapshot in place.
+     *
+     * @return  true if a new snapshot has been published.
+     */
+    public synchronized boolean reloadIfChanged() {
+        long start = System.nanoTime();
+        try {
+            Snapshot old = current.get();
+            Map<String, Long> versions = readVersions();
+            if (versions.equals(old.versions)) {
+                return false;
+            }
+            Snapshot snapshot;
+            if (onlyServicesChanged(old.versions, versions)) {
+                snapshot = new Snapshot(old.generation + 1, versions,
+                        reader.readServiceChanges(old.timeTable));
+                // a graph only depends on the stops and on the names of the
+                // active services, so it survives if the latter are the same
+                for (Map.Entry<Date, Graph> e : old.graphs.entrySet()) {
+                    Date date = e.getKey();
+                    if (serviceNames(old.timeTable.servicesForDate(date)).equals(
+                            serviceNames(snapshot.timeTable.servicesForDate(date)))) {
+                        snapshot.graphs.put(date, e.getValue());
+                    }
+                }
+            } else {
+                snapshot = new Snapshot(old.generation + 1, versions,
+                        reader.readTimeTable());
+            }
+            // build the graphs that were in use before the swap, so that
+            // the queries following it do not have to wait for them
+            for (Date date : old.graphs.keySet()) {
+                snapshot.graphForDate(date);
+            }
+            current.set(snapshot);
+
+            long duration = System.nanoTime() - start;
+            reloadCount.incrementAndGet();
+            lastReloadNanos.set(duration);
+            for (Listener l : listeners) {
+                l.reloaded(snapshot, duration);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            return false;
+        }
+    }
+
+    private void failed(Exception e) {
+        failureCount.incrementAndGet();
+        for (Listener l : listeners) {
+            l.reloadFailed(e);
+        }
+    }
+
+    /**
+     * Returns the number of successful reloads.
+     *
+     * @return  the number of successful reloads.
+     */
+    public long reloadCount() { return reloadCount.get(); }
+
+    /**
+     * Returns the number of failed reloads.
+     *
+     * @return  the number of failed reloads.
+     */
+    public long failureCount() { return failureCount.get(); }
+
+    /**
+     * Returns the duration of the last successful reload.
+     *
+     * @return  the duration of the last successful reload in nanoseconds,
+     *          or 0 if there has not been any reload yet.
+     */
+    public long lastReloadNanos() { return lastReloadNanos.get(); }
+
+    private static boolean onlyServicesChanged(Map<String, Long> oldVersions,
+            Map<String, Long> newVersions) {
+        for (String fileName : GRAPH_FILE_NAMES) {
+            if (! oldVersions.get(fileName).equals(newVersions.get(fileName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> serviceNames(Set<Service> services) {
+        Set<String> names = new HashSet<String>();
+        for (Service s : services) {
+            names.add(s.name());
+        }
+        return names;
+    }
+
+    private Map<String, Long> readVersions() throws IOException {
+        Map<String, Long> versions = new HashMap<String, Long>();
+        for (String fileName : FILE_NAMES) {
+            versions.put(fileName, source.version(fileName));
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,34 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A location from which the files of a timetable (stops.csv,
+ * stop_times.csv, calendar.csv and calendar_dates.csv) can be read.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public interface TimeTableSource {
+
+    /**
+     * Opens the timetable file with the given name for reading. The
+     * caller is responsible for closing the returned stream.
+     *
+     * @param fileName      the name of the file (e.g. "stops.csv").
+     * @return              a stream with the contents of the file.
+     * @throws IOException  if the file does not exist or cannot be opened.
+     */
+    InputStream open(String fileName) throws IOException;
+
+    /**
+     * Returns a version stamp for the timetable file with the given name,
+     * e.g. its modification time. The stamp changes whenever the contents
+     * of the file change; it is only compared for equality.
+     *
+     * @param fileName      the name of the file (e.g. "stops.csv").
+     * @return              the version stamp of the file.
+     * @throws IOException  if the file does not exist or cannot be accessed.
+     */
+    long version(String fileName) throws IOException;
+}
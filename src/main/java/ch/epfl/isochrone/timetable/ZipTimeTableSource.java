@@ -0,0 +1,91 @@
+package ch.epfl.isochrone.timetable;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A timetable source that reads its files from a zip archive. Entries
+ * are accessed directly through the archive's central directory, so
+ * that only the requested file is decompressed.
+ *
+ * @author Jakob Bauer (223590)
+ */
+public final class ZipTimeTableSource implements TimeTableSource {
+
+    private final Path archive;
+    private final String entryPrefix;
+
+    /**
+     * Class constructor.
+     *
+     * @param archive       the zip archive.
+     * @param entryPrefix   the prefix of the entry names inside the
+     *                      archive (e.g. "time-table/", or "" if the files
+     *                      are at the root of the archive).
+     */
+    public ZipTimeTableSource(Path archive, String entryPrefix) {
+        this.archive = archive;
+        this.entryPrefix = entryPrefix;
+    }
+
+    /**
+     * Class constructor for archives that contain the timetable files
+     * at their root.
+     *
+     * @param archive   the zip archive.
+     */
+    public ZipTimeTableSource(Path archive) {
+        this(archive, "");
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#open(java.lang.String)
+     */
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        final ZipFile zipFile = new ZipFile(archive.toFile());
+        try {
+            ZipEntry entry = zipFile.getEntry(entryPrefix + fileName);
+            if (entry == null) {
+                throw new FileNotFoundException("Entry not found in "
+                        + archive + ": " + entryPrefix + fileName);
+            }
+            // closing the entry stream also closes the archive
+            return new FilterInputStream(zipFile.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            zipFile.close();
+            throw e;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see ch.epfl.isochrone.timetable.TimeTableSource#version(java.lang.String)
+     */
+    @Override
+    public long version(String fileName) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zipFile.getEntry(entryPrefix + fileName);
+            if (entry == null) {
+                throw new FileNotFoundException("Entry not found in "
+                        + archive + ": " + entryPrefix + fileName);
+            }
+            // rewriting the archive does not necessarily change the time
+            // stamps of its entries, but their checksums reflect the contents
+            return (entry.getCrc() << 32) ^ entry.getSize();
+        }
+    }
+}
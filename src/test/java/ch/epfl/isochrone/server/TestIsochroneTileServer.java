@@ -0,0 +1,134 @@
+package ch.epfl.isochrone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.tiledmap.ColorTable;
+import ch.epfl.isochrone.timetable.ResourceTimeTableSource;
+import ch.epfl.isochrone.timetable.TimeTableReloader;
+import ch.epfl.isochrone.timetable.TimeTableSource;
+
+public class TestIsochroneTileServer {
+
+    private IsochroneTileServer server;
+    private String tilePath;
+
+    @Before
+    public void startServer() throws IOException {
+        TimeTableReloader reloader = new TimeTableReloader(
+                new ResourceTimeTableSource("/testdata/time-table/"), 300, 1.25);
+        ColorTable colors = new ColorTable(300,
+                Arrays.asList(Color.RED, Color.YELLOW, Color.BLUE, Color.BLACK));
+        server = new IsochroneTileServer(new InetSocketAddress("localhost", 0),
+                reloader, colors, 1.25, 2);
+        server.start();
+        PointOSM p = new PointWGS84(Math.toRadians(6.66154501903),
+                Math.toRadians(46.5430638436)).toOSM(15);
+        tilePath = "/15/" + (p.roundedX() / 256) + "/" + (p.roundedY() / 256) + ".png";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testTileIsServedAsPNG() throws IOException {
+        HttpURLConnection c = open("/iso/Croisettes/2013-10-14/08:00" + tilePath);
+        assertEquals(200, c.getResponseCode());
+        assertEquals("image/png", c.getContentType());
+        assertNotNull(c.getHeaderField("ETag"));
+        assertTrue(c.getHeaderField("Cache-Control").contains("no-cache"));
+        try (InputStream in = c.getInputStream()) {
+            BufferedImage image = ImageIO.read(in);
+            assertEquals(256, image.getWidth());
+            // the starting stop is reached at once
+            assertTrue(image.getRGB(128, 128) != Color.BLACK.getRGB());
+        }
+    }
+
+    @Test
+    public void testMatchingETagGivesNotModified() throws IOException {
+        HttpURLConnection c = open("/iso/Croisettes/2013-10-14/08:00:30" + tilePath);
+        assertEquals(200, c.getResponseCode());
+        c.getInputStream().close();
+
+        HttpURLConnection again = open("/iso/Croisettes/2013-10-14/08:00:30" + tilePath);
+        again.setRequestProperty("If-None-Match", c.getHeaderField("ETag"));
+        assertEquals(304, again.getResponseCode());
+    }
+
+    @Test
+    public void testInvalidRequestsAreRejected() throws IOException {
+        assertEquals(404, open("/iso/Nowhere/2013-10-14/08:00" + tilePath).getResponseCode());
+        assertEquals(404, open("/iso/Croisettes/2013-10-14/08:00/2/4/0.png").getResponseCode());
+        assertEquals(404, open("/iso/Croisettes/2013-10-14" + tilePath).getResponseCode());
+        assertEquals(400, open("/iso/Croisettes/2013-13-14/08:00" + tilePath).getResponseCode());
+        assertEquals(400, open("/iso/Croisettes/2013-10-14/08:75" + tilePath).getResponseCode());
+    }
+
+    @Test
+    public void testHeadGivesTheStatusOfGet() throws IOException {
+        HttpURLConnection c = open("/iso/Croisettes/2013-10-14/08:00" + tilePath);
+        c.setRequestMethod("HEAD");
+        assertEquals(200, c.getResponseCode());
+        assertEquals("image/png", c.getContentType());
+
+        HttpURLConnection unknown = open("/iso/Nowhere/2013-10-14/08:00" + tilePath);
+        unknown.setRequestMethod("HEAD");
+        assertEquals(404, unknown.getResponseCode());
+    }
+
+    @Test
+    public void testHeadReportsQueriesThatCannotBeComputed() throws IOException {
+        server.stop(0);
+        // the stops can be read, but not the graph
+        final TimeTableSource resources = new ResourceTimeTableSource("/testdata/time-table/");
+        TimeTableSource source = new TimeTableSource() {
+            @Override
+            public InputStream open(String fileName) throws IOException {
+                if (fileName.equals("stop_times.csv")) {
+                    throw new IOException("unreadable");
+                }
+                return resources.open(fileName);
+            }
+
+            @Override
+            public long version(String fileName) throws IOException {
+                return resources.version(fileName);
+            }
+        };
+        server = new IsochroneTileServer(new InetSocketAddress("localhost", 0),
+                new TimeTableReloader(source, 300, 1.25),
+                new ColorTable(300, Arrays.asList(Color.RED, Color.BLACK)), 1.25, 2);
+        server.start();
+
+        HttpURLConnection c = open("/iso/Croisettes/2013-10-14/08:00" + tilePath);
+        c.setRequestMethod("HEAD");
+        assertEquals(500, c.getResponseCode());
+        assertEquals(500, open("/iso/Croisettes/2013-10-14/08:00" + tilePath).getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.port() + path)
+                .openConnection();
+    }
+}
@@ -0,0 +1,81 @@
+package ch.epfl.isochrone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.tiledmap.TileArchive;
+import ch.epfl.isochrone.timetable.Date;
+import ch.epfl.isochrone.timetable.ResourceTimeTableSource;
+import ch.epfl.isochrone.timetable.SecondsPastMidnight;
+import ch.epfl.isochrone.timetable.TimeTableReloader;
+
+public class TestPyramidGenerator {
+
+    private static final PointWGS84 CORNER1 =
+            new PointWGS84(Math.toRadians(6.64), Math.toRadians(46.55));
+    private static final PointWGS84 CORNER2 =
+            new PointWGS84(Math.toRadians(6.68), Math.toRadians(46.53));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPyramidIsGeneratedAndResumed() throws IOException {
+        TimeTableReloader reloader = new TimeTableReloader(
+                new ResourceTimeTableSource("/testdata/time-table/"), 300, 1.25);
+        PyramidGenerator generator = new PyramidGenerator(reloader,
+                IsochroneTileServer.defaultColors(), 1.25, new ForkJoinPool(4));
+        Date date = new Date(14, Date.Month.OCTOBER, 2013);
+        List<PyramidGenerator.Query> queries = Arrays.asList(
+                new PyramidGenerator.Query("Croisettes", date, SecondsPastMidnight.fromHMS(8, 0, 0)),
+                new PyramidGenerator.Query("Vennes", date, SecondsPastMidnight.fromHMS(8, 0, 0)));
+        Path file = folder.getRoot().toPath().resolve("pyramid.archive");
+
+        final AtomicLong lastDone = new AtomicLong();
+        final AtomicLong lastTotal = new AtomicLong();
+        PyramidGenerator.Progress progress = new PyramidGenerator.Progress() {
+            @Override
+            public void progressed(long done, long total) {
+                synchronized (lastDone) {
+                    lastDone.set(Math.max(lastDone.get(), done));
+                    lastTotal.set(total);
+                }
+            }
+        };
+        long rendered = generator.generate(queries, CORNER1, CORNER2, 12, 15, file, progress);
+        assertEquals(lastTotal.get(), rendered);
+        assertEquals(lastTotal.get(), lastDone.get());
+
+        try (TileArchive archive = TileArchive.open(file)) {
+            assertEquals(rendered, archive.size());
+            PointOSM p = CORNER1.toOSM(15);
+            ByteBuffer png = archive.get(1, 15, p.roundedX() / 256, p.roundedY() / 256);
+            byte[] bytes = new byte[png.remaining()];
+            png.get(bytes);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            assertNotNull(image);
+            assertEquals(256, image.getWidth());
+        }
+
+        // everything is already in the archive
+        assertEquals(0, generator.generate(queries, CORNER1, CORNER2, 12, 15, file, null));
+    }
+}
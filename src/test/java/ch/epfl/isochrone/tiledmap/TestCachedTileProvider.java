@@ -0,0 +1,88 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestCachedTileProvider {
+
+    @Test
+    public void testConcurrentRequestsObtainTileOnce() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Tile tile = new Tile(12, 1, 2, UniformTiles.image(0xFF000000));
+        final TileProvider p = new CachedTileProvider(new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                calls.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return tile;
+            }
+        });
+
+        final List<Tile> results = new ArrayList<Tile>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Tile result = p.tileAt(12, 1, 2);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        // gives the other threads the time to join the first request
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, calls.get());
+        assertEquals(8, results.size());
+        for (Tile result : results) {
+            assertSame(tile, result);
+        }
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Tile tile = new Tile(12, 1, 2, UniformTiles.image(0xFF000000));
+        TileProvider p = new CachedTileProvider(new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first request fails");
+                }
+                return tile;
+            }
+        });
+        try {
+            p.tileAt(12, 1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            // propagated to the caller
+        }
+        assertSame(tile, p.tileAt(12, 1, 2));
+        assertSame(tile, p.tileAt(12, 1, 2));
+        assertEquals(2, calls.get());
+    }
+}
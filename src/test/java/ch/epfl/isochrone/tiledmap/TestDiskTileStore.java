@@ -0,0 +1,90 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDiskTileStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoredTilesSurviveTheStore() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        DiskTileStore store = new DiskTileStore(directory, 1 << 20);
+        assertNull(store.get(12, 2132, 1449));
+        store.put(12, 2132, 1449, bytes(100, 1));
+        store.put(20, 1048576, 1048576, bytes(200, 2));
+        assertTrue(Files.exists(directory.resolve("12/2132/1449.png")));
+
+        DiskTileStore reopened = new DiskTileStore(directory, 1 << 20);
+        assertEquals(2, reopened.size());
+        assertEquals(300, reopened.bytes());
+        assertArrayEquals(bytes(100, 1), reopened.get(12, 2132, 1449));
+        assertArrayEquals(bytes(200, 2), reopened.get(20, 1048576, 1048576));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTilesAreEvicted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        DiskTileStore store = new DiskTileStore(directory, 1000);
+        for (int i = 0; i < 20; i++) {
+            store.get(12, 0, 0);
+            store.put(12, i + 1, 0, bytes(100, i));
+            if (i == 0) {
+                store.put(12, 0, 0, bytes(100, 0));
+            }
+            assertTrue(store.bytes() <= 1000);
+        }
+        assertEquals(10, store.size());
+        assertArrayEquals(bytes(100, 0), store.get(12, 0, 0));
+        assertNull(store.get(12, 1, 0));
+        assertTrue(! Files.exists(directory.resolve("12/1/0.png")));
+
+        // a smaller store evicts tiles when it is opened
+        DiskTileStore smaller = new DiskTileStore(directory, 500);
+        assertEquals(5, smaller.size());
+    }
+
+    @Test
+    public void testTilesExpire() throws IOException, InterruptedException {
+        DiskTileStore store = new DiskTileStore(folder.getRoot().toPath(), 1 << 20, 50);
+        store.put(12, 1, 2, bytes(100, 1));
+        assertArrayEquals(bytes(100, 1), store.get(12, 1, 2));
+        Thread.sleep(100);
+        assertNull(store.get(12, 1, 2));
+        // kept until it is replaced
+        assertArrayEquals(bytes(100, 1), store.getStale(12, 1, 2));
+        store.put(12, 1, 2, bytes(100, 2));
+        assertArrayEquals(bytes(100, 2), store.get(12, 1, 2));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testTileDeletedOutsideOfTheStore() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        DiskTileStore store = new DiskTileStore(directory, 1 << 20);
+        store.put(12, 1, 2, bytes(100, 1));
+        Files.delete(directory.resolve("12/1/2.png"));
+        assertNull(store.get(12, 1, 2));
+        assertEquals(0, store.bytes());
+    }
+
+    private static byte[] bytes(int length, int value) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (value + i);
+        }
+        return bytes;
+    }
+}
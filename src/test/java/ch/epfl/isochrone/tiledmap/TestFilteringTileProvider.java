@@ -0,0 +1,175 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestFilteringTileProvider {
+
+    @Test
+    public void testBulkTransformMatchesPixelTransform() {
+        int[] types = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+        for (int type : types) {
+            final BufferedImage image = randomImage(new Random(type), type);
+            FilteringTileProvider f = new FilteringTileProvider(constantProvider(image)) {
+                @Override
+                public int transformARGB(int argb) {
+                    return argb ^ 0x00FF00FF;
+                }
+            };
+            BufferedImage result = f.tileAt(10, 1, 2).image();
+            for (int i = 0; i < 256; i++) {
+                for (int j = 0; j < 256; j++) {
+                    assertEquals(image.getRGB(i, j) ^ 0x00FF00FF, result.getRGB(i, j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBulkTransformOfSubImage() {
+        BufferedImage image = randomImage(new Random(1), BufferedImage.TYPE_INT_ARGB);
+        BufferedImage big = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        big.setRGB(128, 64, 256, 256, image.getRGB(0, 0, 256, 256, null, 0, 256), 0, 256);
+        FilteringTileProvider f = new FilteringTileProvider(
+                constantProvider(big.getSubimage(128, 64, 256, 256))) {
+            @Override
+            public int transformARGB(int argb) {
+                return argb;
+            }
+        };
+        BufferedImage result = f.tileAt(10, 1, 2).image();
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 256; j++) {
+                assertEquals(image.getRGB(i, j), result.getRGB(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void testTransparencyOfOpaqueTileIsAppliedWhenDrawing() {
+        BufferedImage image = randomImage(new Random(2), BufferedImage.TYPE_INT_RGB);
+        Tile tile = new TransparentTileProvider(constantProvider(image), 0.5).tileAt(10, 1, 2);
+        assertSame(image, tile.image());
+        assertEquals(0.5, tile.opacity(), 0);
+
+        // drawing the tile gives the same result as drawing the
+        // transformed pixels, up to rounding
+        BufferedImage composited = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = composited.createGraphics();
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float) tile.opacity()));
+        g.drawImage(tile.image(), null, 0, 0);
+        g.dispose();
+        BufferedImage expected = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        expected.createGraphics().drawImage(
+                FilteringTileProvider.argbCopy(new Tile(10, 1, 2, image, 0.5)), null, 0, 0);
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 256; j++) {
+                int c1 = composited.getRGB(i, j), c2 = expected.getRGB(i, j);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int d = ((c1 >> shift) & 0xFF) - ((c2 >> shift) & 0xFF);
+                    assertTrue(Math.abs(d) <= 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStackedTransparenciesOfOpaqueTileAreAppliedWhenDrawing() {
+        BufferedImage image = randomImage(new Random(3), BufferedImage.TYPE_INT_RGB);
+        TileProvider p = new TransparentTileProvider(
+                new TransparentTileProvider(constantProvider(image), 0.25), 0.5);
+        Tile tile = p.tileAt(10, 1, 2);
+        assertSame(image, tile.image());
+        assertEquals(0.5, tile.opacity(), 0);
+    }
+
+    @Test
+    public void testFusedChainMatchesSuccessiveFilters() {
+        int[] types = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB };
+        for (int type : types) {
+            BufferedImage image = randomImage(new Random(4), type);
+            TileProvider p = new TransparentTileProvider(
+                    new SwapFilter(new TransparentTileProvider(
+                            new XorFilter(new TransparentTileProvider(
+                                    constantProvider(image), 0.75)), 0.25)), 0.5);
+            Tile tile = p.tileAt(10, 1, 2);
+            assertEquals(1, tile.opacity(), 0);
+            for (int i = 0; i < 256; i++) {
+                for (int j = 0; j < 256; j++) {
+                    int argb = image.getRGB(i, j);
+                    argb = (argb & 0x00FFFFFF) | (((int) (255 * 0.75)) << 24);
+                    argb = argb ^ 0x00FF00FF;
+                    argb = (argb & 0x00FFFFFF) | (((int) (255 * 0.25)) << 24);
+                    argb = (argb & 0xFF00FF00) | ((argb & 0xFF) << 16) | ((argb >> 16) & 0xFF);
+                    argb = (argb & 0x00FFFFFF) | (((int) (255 * 0.5)) << 24);
+                    assertEquals(argb, tile.image().getRGB(i, j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFusedChainOfUniformTile() {
+        TileProvider p = new SwapFilter(new XorFilter(
+                constantProvider(UniformTiles.image(0xFF123456))));
+        assertSame(UniformTiles.image(0xFFA934ED), p.tileAt(10, 1, 2).image());
+    }
+
+    private static final class XorFilter extends FilteringTileProvider {
+        public XorFilter(TileProvider providerToFilter) {
+            super(providerToFilter);
+        }
+
+        @Override
+        public int transformARGB(int argb) {
+            return argb ^ 0x00FF00FF;
+        }
+    }
+
+    private static final class SwapFilter extends FilteringTileProvider {
+        public SwapFilter(TileProvider providerToFilter) {
+            super(providerToFilter);
+        }
+
+        @Override
+        public int transformARGB(int argb) {
+            return (argb & 0xFF00FF00) | ((argb & 0xFF) << 16) | ((argb >> 16) & 0xFF);
+        }
+
+        @Override
+        protected void transformPixels(int[] pixels, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int argb = pixels[i];
+                pixels[i] = (argb & 0xFF00FF00) | ((argb & 0xFF) << 16) | ((argb >> 16) & 0xFF);
+            }
+        }
+    }
+
+    private static TileProvider constantProvider(final BufferedImage image) {
+        return new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                return new Tile(zoom, x, y, image);
+            }
+        };
+    }
+
+    private static BufferedImage randomImage(Random rng, int type) {
+        BufferedImage image = new BufferedImage(256, 256, type);
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 256; j++) {
+                image.setRGB(i, j, rng.nextInt());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,162 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Graph;
+import ch.epfl.isochrone.timetable.Stop;
+
+public class TestIsochroneTileCache {
+
+    private static final Stop STOP = new Stop("Lausanne-Flon",
+            new PointWGS84(Math.toRadians(6.63), Math.toRadians(46.52)));
+    private static final Graph GRAPH =
+            new Graph.Builder(Collections.singleton(STOP)).build();
+    private static final ColorTable COLORS =
+            new ColorTable(300, Arrays.asList(Color.RED, Color.BLACK));
+
+    @Test
+    public void testTilesOfPreviousQueryAreReused() {
+        IsochroneTileCache cache = new IsochroneTileCache(1 << 20);
+        AtomicInteger renderings = new AtomicInteger();
+        Stop other = new Stop("Renens", new PointWGS84(Math.toRadians(6.5882), Math.toRadians(46.5392)));
+        FastestPathTree first = tree(36000);
+        FastestPathTree second = new FastestPathTree.Builder(other, 36000).build();
+
+        TileProvider p1 = cache.cachedProvider(renderer(renderings), GRAPH, first, COLORS, 1.25);
+        Tile t1 = p1.tileAt(12, 1, 2);
+        TileProvider p2 = cache.cachedProvider(renderer(renderings), GRAPH, second, COLORS, 1.25);
+        Tile t2 = p2.tileAt(12, 1, 2);
+        assertEquals(2, renderings.get());
+
+        // back to the first query, with a new (but equivalent) tree
+        TileProvider p3 = cache.cachedProvider(renderer(renderings), GRAPH, tree(36000), COLORS, 1.25);
+        assertSame(t1, p3.tileAt(12, 1, 2));
+        TileProvider p4 = cache.cachedProvider(renderer(renderings), GRAPH, second, COLORS, 1.25);
+        assertSame(t2, p4.tileAt(12, 1, 2));
+        assertEquals(2, renderings.get());
+    }
+
+    @Test
+    public void testEveryPartOfTheQueryCounts() {
+        IsochroneTileCache cache = new IsochroneTileCache(1 << 20);
+        AtomicInteger renderings = new AtomicInteger();
+        Graph otherGraph = new Graph.Builder(Collections.singleton(STOP)).build();
+        ColorTable otherColors = new ColorTable(300, Arrays.asList(Color.RED, Color.BLACK));
+        cache.cachedProvider(renderer(renderings), GRAPH, tree(36000), COLORS, 1.25).tileAt(12, 1, 2);
+        cache.cachedProvider(renderer(renderings), otherGraph, tree(36000), COLORS, 1.25).tileAt(12, 1, 2);
+        cache.cachedProvider(renderer(renderings), GRAPH, tree(36000), otherColors, 1.25).tileAt(12, 1, 2);
+        cache.cachedProvider(renderer(renderings), GRAPH, tree(36000), COLORS, 1.5).tileAt(12, 1, 2);
+        assertEquals(4, renderings.get());
+        assertEquals(4, cache.cache().size());
+    }
+
+    @Test
+    public void testOnlyTilesOfChangedStopsAreRenderedAgain() {
+        // two stops about 10 km apart, whose discs (at most 1.25 m/s
+        // during 10 minutes) do not share any tile at zoom 14
+        Stop near = new Stop("Renens", new PointWGS84(Math.toRadians(6.5882), Math.toRadians(46.5392)));
+        Stop far = new Stop("Lutry", new PointWGS84(Math.toRadians(6.6870), Math.toRadians(46.5035)));
+        ColorTable colors = new ColorTable(300, Arrays.asList(Color.RED, Color.BLUE, Color.BLACK));
+        FastestPathTree before = new FastestPathTree.Builder(STOP, 36000)
+            .setArrivalTime(near, 36100, STOP)
+            .setArrivalTime(far, 36200, STOP)
+            .build();
+        // one minute later, only the travel time to far changes
+        FastestPathTree after = new FastestPathTree.Builder(STOP, 36060)
+            .setArrivalTime(near, 36160, STOP)
+            .setArrivalTime(far, 36500, STOP)
+            .build();
+
+        IsochroneTileCache cache = new IsochroneTileCache(1 << 20);
+        AtomicInteger renderings = new AtomicInteger();
+        PointOSM n = near.position().toOSM(14);
+        PointOSM f = far.position().toOSM(14);
+        Tile nearTile = cache.cachedProvider(renderer(renderings), GRAPH, before, colors, 1.25)
+                .tileAt(14, n.roundedX() / 256, n.roundedY() / 256);
+        cache.cachedProvider(renderer(renderings), GRAPH, before, colors, 1.25)
+                .tileAt(14, f.roundedX() / 256, f.roundedY() / 256);
+        assertEquals(2, renderings.get());
+
+        TileProvider p = cache.cachedProvider(renderer(renderings), GRAPH, after, colors, 1.25);
+        assertSame(nearTile, p.tileAt(14, n.roundedX() / 256, n.roundedY() / 256));
+        assertEquals(2, renderings.get());
+        p.tileAt(14, f.roundedX() / 256, f.roundedY() / 256);
+        assertEquals(3, renderings.get());
+    }
+
+    @Test
+    public void testTilesAreBuiltFromCachedChildren() {
+        IsochroneTileCache cache = new IsochroneTileCache(1 << 20, true);
+        AtomicInteger renderings = new AtomicInteger();
+        TileProvider p = cache.cachedProvider(renderer(renderings), GRAPH, tree(36000), COLORS, 1.25);
+        for (int k = 0; k < 4; k++) {
+            p.tileAt(13, 2 + k % 2, 4 + k / 2);
+        }
+        assertEquals(4, renderings.get());
+        assertEquals(0xFF000000, p.tileAt(12, 1, 2).image().getRGB(0, 0));
+        assertEquals(4, renderings.get());
+        // a child is missing
+        p.tileAt(12, 1, 3);
+        assertEquals(5, renderings.get());
+
+        IsochroneTileCache plain = new IsochroneTileCache(1 << 20);
+        p = plain.cachedProvider(renderer(renderings), GRAPH, tree(36000), COLORS, 1.25);
+        for (int k = 0; k < 4; k++) {
+            p.tileAt(13, 2 + k % 2, 4 + k / 2);
+        }
+        p.tileAt(12, 1, 2);
+        assertEquals(10, renderings.get());
+    }
+
+    @Test
+    public void testProvidersOfReusedQueryNumbersDoNotShareTiles() {
+        IsochroneTileCache cache = new IsochroneTileCache(1 << 20, true);
+        AtomicInteger renderings = new AtomicInteger();
+        TileProvider old = cache.cachedProvider(renderer(renderings), GRAPH, tree(0), COLORS, 1.25);
+        Tile oldTile = old.tileAt(12, 1, 2);
+        // the numbers are reused from the 65537th query on, which gets the
+        // one of the first query
+        for (int t = 1; t < 1 << 16; t++) {
+            cache.cachedProvider(renderer(renderings), GRAPH, tree(t), COLORS, 1.25);
+        }
+        final Tile newTile = new Tile(12, 1, 2, UniformTiles.image(0xFFFF0000));
+        TileProvider p = cache.cachedProvider(new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                return newTile;
+            }
+        }, GRAPH, tree(1 << 16), COLORS, 1.25);
+        assertSame(newTile, p.tileAt(12, 1, 2));
+        assertEquals(1, renderings.get());
+        // the old provider renders its own tiles again, without caching them
+        assertSame(oldTile.image(), old.tileAt(12, 1, 2).image());
+        assertEquals(2, renderings.get());
+        assertSame(newTile, p.tileAt(12, 1, 2));
+        assertEquals(1, cache.cache().size());
+    }
+
+    private static FastestPathTree tree(int departureTime) {
+        return new FastestPathTree.Builder(STOP, departureTime).build();
+    }
+
+    private static TileProvider renderer(final AtomicInteger renderings) {
+        return new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                renderings.incrementAndGet();
+                return new Tile(zoom, x, y, UniformTiles.image(0xFF000000));
+            }
+        };
+    }
+}
@@ -0,0 +1,131 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static java.lang.Math.toRadians;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.timetable.CancellationToken;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Stop;
+
+public class TestIsochroneTileProvider {
+
+    private static final double WALKING_SPEED = 1.25;
+    private static final ColorTable COLORS = new ColorTable(300, Arrays.asList(
+            Color.RED, Color.ORANGE, Color.YELLOW, Color.GREEN, Color.BLUE, Color.BLACK));
+
+    @Test
+    public void testRenderingsAgree() {
+        FastestPathTree tree = randomTree(new Random(7), 200);
+        TileProvider discs = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED,
+                IsochroneTileProvider.Rendering.DISCS);
+        TileProvider pixels = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED,
+                IsochroneTileProvider.Rendering.PIXELS);
+
+        long different = 0, total = 0;
+        for (int zoom = 12; zoom <= 15; zoom++) {
+            PointOSM center = position(46.52, 6.63).toOSM(zoom);
+            for (int x = center.roundedX() / 256 - 1; x <= center.roundedX() / 256 + 1; x++) {
+                for (int y = center.roundedY() / 256 - 1; y <= center.roundedY() / 256 + 1; y++) {
+                    BufferedImage i1 = discs.tileAt(zoom, x, y).image();
+                    BufferedImage i2 = pixels.tileAt(zoom, x, y).image();
+                    for (int i = 0; i < 256; i++) {
+                        for (int j = 0; j < 256; j++) {
+                            total++;
+                            if (i1.getRGB(i, j) != i2.getRGB(i, j)) {
+                                different++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // both renderings only differ on the edges of the discs
+        assertTrue(different + " of " + total, different < total / 100);
+    }
+
+    @Test
+    public void testTileFarFromStopsIsBackground() {
+        FastestPathTree tree = randomTree(new Random(7), 200);
+        for (IsochroneTileProvider.Rendering r : IsochroneTileProvider.Rendering.values()) {
+            TileProvider p = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED, r);
+            BufferedImage image = p.tileAt(12, 0, 0).image();
+            assertEquals(Color.BLACK.getRGB(), image.getRGB(0, 0));
+            assertEquals(Color.BLACK.getRGB(), image.getRGB(255, 255));
+        }
+    }
+
+    @Test
+    public void testTilesFarFromStopsShareTheirImage() {
+        FastestPathTree tree = randomTree(new Random(7), 200);
+        TileProvider p = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED);
+        assertSame(p.tileAt(12, 0, 0).image(), p.tileAt(14, 3, 5).image());
+
+        TileProvider t = new TransparentTileProvider(p, 0.5);
+        BufferedImage image = t.tileAt(12, 0, 0).image();
+        assertSame(image, t.tileAt(14, 3, 5).image());
+        assertEquals(0x7F000000, image.getRGB(17, 42));
+    }
+
+    @Test
+    public void testCancelledTokenAbandonsRenderings() {
+        FastestPathTree tree = randomTree(new Random(7), 200);
+        PointOSM center = position(46.52, 6.63).toOSM(14);
+        for (IsochroneTileProvider.Rendering r : IsochroneTileProvider.Rendering.values()) {
+            CancellationToken token = new CancellationToken();
+            TileProvider p = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED, r, token);
+            p.tileAt(14, center.roundedX() / 256, center.roundedY() / 256);
+            token.cancel();
+            try {
+                p.tileAt(14, center.roundedX() / 256, center.roundedY() / 256);
+                fail();
+            } catch (CancellationException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testOpaqueColorsGiveIndexedTiles() {
+        FastestPathTree tree = randomTree(new Random(7), 200);
+        PointOSM center = position(46.52, 6.63).toOSM(14);
+        for (IsochroneTileProvider.Rendering r : IsochroneTileProvider.Rendering.values()) {
+            TileProvider p = new IsochroneTileProvider(tree, COLORS, WALKING_SPEED, r);
+            BufferedImage image = p.tileAt(14, center.roundedX() / 256, center.roundedY() / 256).image();
+            assertEquals(BufferedImage.TYPE_BYTE_INDEXED, image.getType());
+        }
+
+        ColorTable translucent = new ColorTable(300, Arrays.asList(
+                new Color(255, 0, 0, 128), Color.BLACK));
+        TileProvider p = new IsochroneTileProvider(tree, translucent, WALKING_SPEED);
+        BufferedImage image = p.tileAt(14, center.roundedX() / 256, center.roundedY() / 256).image();
+        assertEquals(BufferedImage.TYPE_INT_ARGB, image.getType());
+    }
+
+    private static FastestPathTree randomTree(Random gen, int numberOfStops) {
+        Stop origin = new Stop("origin", position(46.52, 6.63));
+        FastestPathTree.Builder builder = new FastestPathTree.Builder(origin, 0);
+        for (int i = 0; i < numberOfStops; i++) {
+            Stop s = new Stop("s" + i, position(46.50 + 0.04 * gen.nextDouble(),
+                    6.60 + 0.06 * gen.nextDouble()));
+            builder.setArrivalTime(s, gen.nextInt(1800), origin);
+        }
+        return builder.build();
+    }
+
+    private static PointWGS84 position(double latitude, double longitude) {
+        return new PointWGS84(toRadians(longitude), toRadians(latitude));
+    }
+}
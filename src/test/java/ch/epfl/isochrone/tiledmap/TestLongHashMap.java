@@ -0,0 +1,58 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLongHashMap {
+
+    @Test
+    public void testRandomOperationsMatchLinkedHashMap() {
+        Random rng = new Random(2013);
+        LongHashMap<Integer> map = new LongHashMap<Integer>(4);
+        Map<Long, Integer> expected = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+        for (int k = 0; k < 200000; k++) {
+            // few distinct keys with colliding low bits, to exercise the chains
+            long key = ((long) rng.nextInt(300) << 32) | (rng.nextInt(4) << 10);
+            switch (rng.nextInt(5)) {
+            case 0:
+            case 1:
+                assertEquals(expected.put(key, k), map.put(key, k));
+                break;
+            case 2:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            case 3:
+                assertEquals(expected.get(key), map.get(key));
+                break;
+            default:
+                if (! expected.isEmpty()) {
+                    long eldest = expected.keySet().iterator().next();
+                    assertEquals(eldest, map.eldestKey());
+                    assertEquals(expected.remove(eldest), map.remove(eldest));
+                }
+            }
+            assertEquals(expected.size(), map.size());
+        }
+    }
+
+    @Test
+    public void testMissingKey() {
+        LongHashMap<String> map = new LongHashMap<String>(0);
+        assertNull(map.get(0));
+        assertNull(map.remove(0));
+        map.put(0, "zero");
+        assertEquals("zero", map.get(0));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testEldestKeyOfEmptyMap() {
+        new LongHashMap<String>(0).eldestKey();
+    }
+}
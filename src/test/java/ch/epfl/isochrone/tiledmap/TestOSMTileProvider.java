@@ -0,0 +1,133 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestOSMTileProvider {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL baseURL;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    // a stand-in for the tile server, whose tiles have the color x/y
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if (exchange.getRequestURI().getPath().startsWith("/missing/")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                String[] path = exchange.getRequestURI().getPath().split("[/.]");
+                int x = Integer.parseInt(path[2]);
+                int y = Integer.parseInt(path[3]);
+                byte[] png = png(x, y);
+                exchange.sendResponseHeaders(200, png.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(png);
+                out.close();
+            }
+        });
+        server.start();
+        baseURL = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testStoredTilesAreNotDownloadedAgain() throws IOException {
+        DiskTileStore store = new DiskTileStore(folder.getRoot().toPath(), 1 << 20);
+        TileProvider p = new CachedTileProvider(new OSMTileProvider(baseURL, store));
+        assertEquals(color(3, 4), p.tileAt(12, 3, 4).image().getRGB(10, 10));
+        assertEquals(color(3, 4), p.tileAt(12, 3, 4).image().getRGB(10, 10));
+        assertEquals(1, requests.get());
+
+        // a cold start only uses the store
+        server.stop(0);
+        DiskTileStore reopened = new DiskTileStore(folder.getRoot().toPath(), 1 << 20);
+        TileProvider q = new CachedTileProvider(new OSMTileProvider(baseURL, reopened));
+        assertEquals(color(3, 4), q.tileAt(12, 3, 4).image().getRGB(10, 10));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testErrorTileExpires() throws IOException {
+        TileProvider p = new CachedTileProvider(new OSMTileProvider(
+                new URL(baseURL, "/missing/"), null, new TileDownloader(2, 1000, 1000, 1, 1)));
+        Tile tile = p.tileAt(12, 3, 4);
+        assertTrue(tile.expirationTime() < Long.MAX_VALUE);
+        // the failure is cached until the error tile expires
+        assertSame(tile, p.tileAt(12, 3, 4));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testExpiredTileIsUsedWhenTheServerFails()
+            throws IOException, InterruptedException {
+        DiskTileStore store = new DiskTileStore(folder.getRoot().toPath(), 1 << 20, 50);
+        new OSMTileProvider(baseURL, store).tileAt(12, 3, 4);
+        Thread.sleep(100);
+
+        server.stop(0);
+        Tile tile = new OSMTileProvider(baseURL, store,
+                new TileDownloader(2, 1000, 1000, 1, 1)).tileAt(12, 3, 4);
+        assertEquals(color(3, 4), tile.image().getRGB(10, 10));
+        assertTrue(tile.expirationTime() < Long.MAX_VALUE);
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testTilesAreDownloadedWithoutStore() throws IOException {
+        TileProvider p = new OSMTileProvider(baseURL);
+        assertEquals(color(5, 6), p.tileAt(12, 5, 6).image().getRGB(0, 0));
+        assertEquals(color(5, 6), p.tileAt(12, 5, 6).image().getRGB(0, 0));
+        assertEquals(2, requests.get());
+    }
+
+    private static int color(int x, int y) {
+        return 0xFF000000 | (x << 8) | y;
+    }
+
+    private static byte[] png(int x, int y) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 256; j++) {
+                image.setRGB(i, j, color(x, y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static java.lang.Math.toRadians;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.epfl.isochrone.geo.PointOSM;
+import ch.epfl.isochrone.geo.PointWGS84;
+import ch.epfl.isochrone.timetable.FastestPathTree;
+import ch.epfl.isochrone.timetable.Stop;
+
+public class TestStopIndex {
+
+    private static final int MAX_TIME = 8 * 300;
+    private static final double WALKING_SPEED = 1.25;
+
+    @Test
+    public void testUnreachableStopsAreNotIndexed() {
+        Stop a = stop("a", 46.52, 6.63);
+        Stop b = stop("b", 46.53, 6.64);
+        FastestPathTree.Builder builder = new FastestPathTree.Builder(a, 1000);
+        builder.setArrivalTime(b, 1000 + MAX_TIME, a);
+        StopIndex index = new StopIndex(builder.build(), MAX_TIME, WALKING_SPEED);
+        assertEquals(1, index.size());
+        assertEquals(a, index.stop(0));
+        assertEquals(0, index.elapsedTime(0));
+    }
+
+    @Test
+    public void testStopsIntersectingMatchesExhaustiveSearch() {
+        Random gen = new Random(42);
+        Stop origin = stop("origin", 46.52, 6.63);
+        FastestPathTree.Builder builder = new FastestPathTree.Builder(origin, 0);
+        for (int i = 0; i < 500; i++) {
+            Stop s = stop("s" + i, 46.45 + 0.15 * gen.nextDouble(),
+                    6.5 + 0.25 * gen.nextDouble());
+            builder.setArrivalTime(s, gen.nextInt(2 * MAX_TIME), origin);
+        }
+        StopIndex index = new StopIndex(builder.build(), MAX_TIME, WALKING_SPEED);
+
+        for (int zoom = 10; zoom <= 17; zoom++) {
+            PointOSM center = new PointWGS84(toRadians(6.63), toRadians(46.52)).toOSM(zoom);
+            int cx = center.roundedX() / 256;
+            int cy = center.roundedY() / 256;
+            for (int x = cx - 3; x <= cx + 3; x++) {
+                for (int y = cy - 3; y <= cy + 3; y++) {
+                    double scale = 256.0 / (1 << zoom);
+                    double x0 = x * scale, y0 = y * scale;
+                    double x1 = (x + 1) * scale, y1 = (y + 1) * scale;
+                    int[] expected = exhaustiveSearch(index, x0, y0, x1, y1);
+                    int[] actual = index.stopsIntersecting(x0, y0, x1, y1);
+                    Arrays.sort(actual);
+                    assertArrayEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCoordinatesScaleToEveryZoomLevel() {
+        Stop a = stop("a", 46.52, 6.63);
+        Stop b = stop("b", 46.53, 6.64);
+        FastestPathTree.Builder builder = new FastestPathTree.Builder(a, 0);
+        builder.setArrivalTime(b, 300, a);
+        StopIndex index = new StopIndex(builder.build(), MAX_TIME, WALKING_SPEED);
+        for (int i = 0; i < index.size(); i++) {
+            for (int zoom = 0; zoom <= 19; zoom++) {
+                PointOSM p = index.stop(i).position().toOSM(zoom);
+                assertEquals(p.x(), index.x(i) * (1 << zoom), 1e-6);
+                assertEquals(p.y(), index.y(i) * (1 << zoom), 1e-6);
+            }
+        }
+    }
+
+    // checks every stop against the largest disc that can be drawn around it
+    private static int[] exhaustiveSearch(StopIndex index, double x0, double y0,
+            double x1, double y1) {
+        int[] result = new int[index.size()];
+        int n = 0;
+        for (int i = 0; i < index.size(); i++) {
+            Stop s = index.stop(i);
+            PointOSM p = s.position().toOSM(0);
+            double meters = (MAX_TIME - index.elapsedTime(i)) * WALKING_SPEED * 1.05;
+            double radius = meters * 256
+                / (2 * Math.PI * 6378137 * Math.cos(s.position().latitude()));
+            double dx = p.x() - Math.max(x0, Math.min(p.x(), x1));
+            double dy = p.y() - Math.max(y0, Math.min(p.y(), y1));
+            if (dx * dx + dy * dy < radius * radius) {
+                result[n++] = i;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static Stop stop(String name, double latitude, double longitude) {
+        return new Stop(name, new PointWGS84(toRadians(longitude), toRadians(latitude)));
+    }
+}
@@ -0,0 +1,101 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTileArchive {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTilesCanBeReadAfterFinish() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tiles.archive");
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            w.put(0, 12, 3, 4, bytes(10, 1));
+            w.put(1, 12, 3, 4, bytes(20, 2));
+            w.put(0, 13, 6, 8, bytes(30, 3));
+            w.finish();
+        }
+        try (TileArchive a = TileArchive.open(file)) {
+            assertEquals(3, a.size());
+            assertEquals(ByteBuffer.wrap(bytes(10, 1)), a.get(0, 12, 3, 4));
+            assertEquals(ByteBuffer.wrap(bytes(20, 2)), a.get(1, 12, 3, 4));
+            assertEquals(ByteBuffer.wrap(bytes(30, 3)), a.get(0, 13, 6, 8));
+            assertNull(a.get(2, 12, 3, 4));
+            assertTrue(a.get(0, 12, 3, 4).isReadOnly());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnfinishedArchiveCannotBeOpened() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tiles.archive");
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            w.put(0, 12, 3, 4, bytes(10, 1));
+        }
+        TileArchive.open(file).close();
+    }
+
+    @Test
+    public void testWriterResumesAfterIncompleteRecord() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tiles.archive");
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            w.put(0, 12, 3, 4, bytes(100, 1));
+            w.put(0, 12, 3, 5, bytes(100, 2));
+        }
+        // as if the program had been interrupted while writing the second tile
+        try (FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            c.truncate(Files.size(file) - 10);
+        }
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            assertTrue(w.contains(0, 12, 3, 4));
+            assertFalse(w.contains(0, 12, 3, 5));
+            w.put(0, 12, 3, 5, bytes(50, 3));
+            w.finish();
+        }
+        try (TileArchive a = TileArchive.open(file)) {
+            assertEquals(2, a.size());
+            assertEquals(ByteBuffer.wrap(bytes(100, 1)), a.get(0, 12, 3, 4));
+            assertEquals(ByteBuffer.wrap(bytes(50, 3)), a.get(0, 12, 3, 5));
+        }
+    }
+
+    @Test
+    public void testTilesCanBeAddedToFinishedArchive() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("tiles.archive");
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            w.put(0, 12, 3, 4, bytes(100, 1));
+            w.finish();
+            w.put(0, 12, 3, 5, bytes(10, 2));
+        }
+        // still readable by a new writer, which finishes it again
+        try (TileArchive.Writer w = new TileArchive.Writer(file)) {
+            assertEquals(2, w.size());
+            w.finish();
+        }
+        try (TileArchive a = TileArchive.open(file)) {
+            assertEquals(ByteBuffer.wrap(bytes(10, 2)), a.get(0, 12, 3, 5));
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (seed * 31 + i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,209 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestTileCache {
+
+    private static final int TILE_BYTES = TileCache.tileBytes(tile(0, 0));
+    // four tiles per segment
+    private static final long MAX_BYTES = 16 * 4 * TILE_BYTES;
+
+    @Test
+    public void testGetReturnsPutTile() {
+        TileCache cache = new TileCache();
+        Tile t = tile(3, 4);
+        assertNull(cache.get(12, 3, 4));
+        cache.put(12, 3, 4, t);
+        assertSame(t, cache.get(12, 3, 4));
+        assertTrue(cache.containsKey(12, 3, 4));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testKeysOfDifferentZoomLevelsDoNotCollide() {
+        TileCache cache = new TileCache();
+        int[][] coordinates = { { 0, 0, 0 }, { 1, 0, 0 }, { 0, 0, 256 },
+                { 0, 2048, 0 }, { 20, 1048576, 1048576 }, { 19, 1048576, 1048576 },
+                { 20, 1048575, 1048576 }, { 20, 1048576, 1048575 } };
+        Tile[] tiles = new Tile[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            int[] c = coordinates[i];
+            tiles[i] = new Tile(c[0], c[1], c[2], UniformTiles.image(0xFF000000));
+            cache.put(c[0], c[1], c[2], tiles[i]);
+        }
+        assertEquals(coordinates.length, cache.size());
+        for (int i = 0; i < coordinates.length; i++) {
+            int[] c = coordinates[i];
+            assertSame(tiles[i], cache.get(c[0], c[1], c[2]));
+        }
+    }
+
+    @Test
+    public void testExpiredTileIsRemoved() {
+        TileCache cache = new TileCache();
+        cache.put(12, 1, 2, new Tile(12, 1, 2, UniformTiles.image(0), 1,
+                System.currentTimeMillis() - 1));
+        assertNull(cache.get(12, 1, 2));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    public void testCacheIsBoundedByBytes() {
+        TileCache cache = new TileCache(MAX_BYTES, TileCache.Eviction.LRU);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(12, i, 0, tile(i, 0));
+            assertTrue(cache.bytes() <= MAX_BYTES);
+        }
+        assertTrue(cache.evictionCount() >= 1000 - MAX_BYTES / TILE_BYTES);
+        assertEquals(cache.size() * (long) TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testTileLargerThanSegmentIsNotCached() {
+        for (TileCache.Eviction eviction : TileCache.Eviction.values()) {
+            // half a tile per segment
+            TileCache cache = new TileCache(8 * TILE_BYTES, eviction);
+            cache.put(12, 0, 0, tile(0, 0));
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.bytes());
+        }
+    }
+
+    @Test
+    public void testUniformTilesOnlyCostAnEntry() {
+        TileCache cache = new TileCache(MAX_BYTES, TileCache.Eviction.LRU);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(12, i, 0, new Tile(12, i, 0, UniformTiles.image(0xFF000000)));
+        }
+        assertEquals(1000, cache.size());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testRecentlyUsedTileIsKept() {
+        TileCache cache = new TileCache(MAX_BYTES, TileCache.Eviction.LRU);
+        cache.put(12, 0, 0, tile(0, 0));
+        for (int i = 1; i < 1000; i++) {
+            assertNotNull(cache.get(12, 0, 0));
+            cache.put(12, i, 0, tile(i, 0));
+        }
+        assertNotNull(cache.get(12, 0, 0));
+    }
+
+    @Test
+    public void testFrequentlyUsedTilesSurviveScan() {
+        for (TileCache.Eviction eviction : TileCache.Eviction.values()) {
+            TileCache cache = new TileCache(MAX_BYTES, eviction);
+            for (int k = 0; k < 5; k++) {
+                for (int i = 0; i < 3; i++) {
+                    if (cache.get(12, i, 1) == null) {
+                        cache.put(12, i, 1, tile(i, 1));
+                    }
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                if (cache.get(12, i, 2) == null) {
+                    cache.put(12, i, 2, tile(i, 2));
+                }
+            }
+            boolean kept = true;
+            for (int i = 0; i < 3; i++) {
+                kept &= cache.containsKey(12, i, 1);
+            }
+            assertEquals(eviction == TileCache.Eviction.TINY_LFU, kept);
+        }
+    }
+
+    @Test
+    public void testConcurrentUse() throws InterruptedException {
+        final TileCache cache = new TileCache(MAX_BYTES, TileCache.Eviction.LRU);
+        final List<Tile> tiles = new ArrayList<Tile>();
+        for (int i = 0; i < 200; i++) {
+            tiles.add(tile(i, 3));
+        }
+        final AtomicLong gets = new AtomicLong();
+        final AtomicLong wrongTiles = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final Random rng = new Random(t);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < 20000; k++) {
+                        int i = rng.nextInt(tiles.size());
+                        gets.incrementAndGet();
+                        Tile tile = cache.get(12, i, 3);
+                        if (tile == null) {
+                            cache.put(12, i, 3, tiles.get(i));
+                        } else if (tile != tiles.get(i)) {
+                            wrongTiles.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrongTiles.get());
+        assertEquals(gets.get(), cache.hitCount() + cache.missCount());
+        assertTrue(cache.bytes() <= MAX_BYTES);
+        assertEquals(cache.size() * (long) TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testIndexedImagesAreCompressed() {
+        IndexColorModel palette = new IndexColorModel(8, 3,
+                new int[] { 0xFFFF0000, 0xFF00FF00, 0xFF000000 }, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int p = 0; p < pixels.length; p++) {
+            int dx = p % 256 - 128, dy = p / 256 - 128;
+            int d2 = dx * dx + dy * dy;
+            pixels[p] = (byte) ((d2 < 40 * 40) ? 0 : (d2 < 90 * 90) ? 1 : 2);
+        }
+        TileCache c = new TileCache(16 << 20, TileCache.Eviction.LRU,
+                TileCache.Storage.RUN_LENGTH);
+        c.put(12, 3, 4, new Tile(12, 3, 4, image, 0.5, 1L << 60));
+        assertTrue(c.bytes() < 65536 / 10);
+
+        Tile t = c.get(12, 3, 4);
+        assertEquals(0.5, t.opacity(), 0);
+        assertEquals(1L << 60, t.expirationTime());
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                assertEquals(image.getRGB(x, y), t.image().getRGB(x, y));
+            }
+        }
+
+        // the other images are kept as they are
+        Tile argb = tile(5, 6);
+        c.put(12, 5, 6, argb);
+        assertSame(argb, c.get(12, 5, 6));
+    }
+
+    private static Tile tile(int x, int y) {
+        return new Tile(12, x, y, new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB));
+    }
+}
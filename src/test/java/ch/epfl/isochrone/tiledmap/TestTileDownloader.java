@@ -0,0 +1,167 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestTileDownloader {
+
+    private static final byte[] CONTENT = { 1, 2, 3, 4 };
+
+    private HttpServer server;
+    private String baseURL;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    // a stand-in for the tile server: /ok answers after a delay given in
+    // the query (if any), /missing does not exist, /failing fails as long
+    // as failuresLeft is positive
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                int n = active.incrementAndGet();
+                synchronized (maxActive) {
+                    maxActive.set(Math.max(maxActive.get(), n));
+                }
+                try {
+                    String path = exchange.getRequestURI().getPath();
+                    String query = exchange.getRequestURI().getQuery();
+                    if (query != null) {
+                        Thread.sleep(Long.parseLong(query));
+                    }
+                    int status = 200;
+                    if (path.equals("/missing")) {
+                        status = 404;
+                    } else if (path.equals("/failing") && (failuresLeft.getAndDecrement() > 0)) {
+                        status = 503;
+                    }
+                    byte[] body = (status == 200) ? CONTENT : new byte[] { 0 };
+                    exchange.sendResponseHeaders(status, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        baseURL = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFailedDownloadsAreRetried() throws IOException {
+        failuresLeft.set(2);
+        TileDownloader d = new TileDownloader(2, 1000, 1000, 3, 1);
+        assertArrayEquals(CONTENT, d.download(new URL(baseURL + "/failing")));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testLastFailureIsReported() throws IOException {
+        failuresLeft.set(5);
+        TileDownloader d = new TileDownloader(2, 1000, 1000, 3, 1);
+        try {
+            d.download(new URL(baseURL + "/failing"));
+            fail();
+        } catch (IOException e) {
+            assertTrue(! (e instanceof FileNotFoundException));
+        }
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testMissingContentIsNotRetried() throws IOException {
+        TileDownloader d = new TileDownloader(2, 1000, 1000, 3, 1);
+        try {
+            d.download(new URL(baseURL + "/missing"));
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testSlowServerTimesOut() throws IOException {
+        TileDownloader d = new TileDownloader(2, 1000, 100, 1, 1);
+        long start = System.nanoTime();
+        try {
+            d.download(new URL(baseURL + "/ok?2000"));
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.nanoTime() - start < 1500L * 1000 * 1000);
+        }
+    }
+
+    @Test
+    public void testConnectionsAreBoundedAndReused() throws Exception {
+        final TileDownloader d = new TileDownloader(2, 1000, 5000, 1, 1);
+        final URL url = new URL(baseURL + "/ok?50");
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 3; k++) {
+                            d.download(url);
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(24, requests.get());
+        assertTrue(maxActive.get() <= 2);
+        // kept-alive connections serve several downloads
+        assertTrue(clientPorts.size() < 24);
+    }
+}
@@ -0,0 +1,116 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+import org.junit.Test;
+
+public class TestTileDownsampler {
+
+    private static final IndexColorModel PALETTE = new IndexColorModel(8, 3,
+            new int[] { 0xFFFF0000, 0xFF0000FF, 0xFF7F007F }, 0, false, -1,
+            DataBuffer.TYPE_BYTE);
+
+    @Test
+    public void testUniformChildrenGiveSameImage() {
+        BufferedImage image = UniformTiles.image(0xFF123456);
+        Tile t = new Tile(13, 0, 0, image, 0.5, 1000);
+        Tile d = TileDownsampler.downsample(12, 0, 0, new Tile[] { t, t, t, t });
+        assertSame(image, d.image());
+        assertEquals(0.5, d.opacity(), 0);
+        assertEquals(1000, d.expirationTime());
+    }
+
+    @Test
+    public void testIndexedChildrenStayIndexed() {
+        // red and blue columns, whose average would be the third color
+        BufferedImage stripes = indexed(new byte[] { 0, 1 });
+        BufferedImage red = indexed(new byte[] { 0 });
+        // blue, except one pixel of every 2x2 square
+        BufferedImage dots = indexed(new byte[] { 1 });
+        byte[] pixels = ((DataBufferByte) dots.getRaster().getDataBuffer()).getData();
+        for (int p = 0; p < pixels.length; p++) {
+            if (((p / 256) % 2 == 0) && ((p % 256) % 2 == 0)) {
+                pixels[p] = 0;
+            }
+        }
+        Tile s = new Tile(13, 0, 0, stripes);
+        Tile r = new Tile(13, 0, 0, red);
+        Tile b = new Tile(13, 0, 0, dots);
+        Tile d = TileDownsampler.downsample(12, 0, 0, new Tile[] { s, r, r, b });
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, d.image().getType());
+        assertSame(PALETTE, d.image().getColorModel());
+        // a tie gives the lowest band, never one of none of the pixels
+        assertEquals(0xFFFF0000, d.image().getRGB(10, 10));
+        assertEquals(0xFFFF0000, d.image().getRGB(200, 10));
+        assertEquals(0xFFFF0000, d.image().getRGB(10, 200));
+        assertEquals(0xFF0000FF, d.image().getRGB(200, 200));
+    }
+
+    @Test
+    public void testPalettesAreComparedByContent() {
+        IndexColorModel copy = new IndexColorModel(8, 3,
+                new int[] { 0xFFFF0000, 0xFF0000FF, 0xFF7F007F }, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+        IndexColorModel other = new IndexColorModel(8, 3,
+                new int[] { 0xFFFF0000, 0xFF00FF00, 0xFF7F007F }, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+        Tile t = new Tile(13, 0, 0, indexed(PALETTE, new byte[] { 0, 1 }));
+        Tile c = new Tile(13, 0, 0, indexed(copy, new byte[] { 1 }));
+        Tile o = new Tile(13, 0, 0, indexed(other, new byte[] { 1 }));
+
+        Tile d = TileDownsampler.downsample(12, 0, 0, new Tile[] { t, c, c, t });
+        assertSame(PALETTE, d.image().getColorModel());
+        assertEquals(0xFF0000FF, d.image().getRGB(200, 10));
+
+        d = TileDownsampler.downsample(12, 0, 0, new Tile[] { t, o, o, t });
+        assertEquals(BufferedImage.TYPE_INT_ARGB, d.image().getType());
+        assertEquals(0xFF00FF00, d.image().getRGB(200, 10));
+    }
+
+    @Test
+    public void testOtherChildrenAreAveraged() {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, (x % 2 == 0) ? 0xFF000000 : 0xFFFFFFFF);
+            }
+        }
+        Tile t = new Tile(13, 0, 0, image);
+        Tile half = new Tile(13, 0, 0, image, 0.5);
+        Tile d = TileDownsampler.downsample(12, 0, 0, new Tile[] { t, t, t, t });
+        assertEquals(0xFF808080, d.image().getRGB(100, 100));
+        assertEquals(1, d.opacity(), 0);
+
+        // different opacities are baked into the pixels
+        d = TileDownsampler.downsample(12, 0, 0, new Tile[] { t, half, t, t });
+        assertEquals(0xFF808080, d.image().getRGB(10, 10));
+        assertEquals(0x7F808080, d.image().getRGB(200, 10));
+    }
+
+    @Test
+    public void testChildrenOfAnotherSizeAreRejected() {
+        Tile t = new Tile(13, 0, 0, new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB));
+        assertNull(TileDownsampler.downsample(12, 0, 0, new Tile[] { t, t, t, t }));
+    }
+
+    // columns of the given colors, repeated
+    private static BufferedImage indexed(byte[] columns) {
+        return indexed(PALETTE, columns);
+    }
+
+    private static BufferedImage indexed(IndexColorModel palette, byte[] columns) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int p = 0; p < pixels.length; p++) {
+            pixels[p] = columns[(p % 256) % columns.length];
+        }
+        return image;
+    }
+}
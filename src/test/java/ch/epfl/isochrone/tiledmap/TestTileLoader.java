@@ -0,0 +1,147 @@
+package ch.epfl.isochrone.tiledmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestTileLoader {
+
+    private static final Tile TILE = new Tile(12, 1, 2, UniformTiles.image(0xFF000000));
+
+    @Test
+    public void testListenerReceivesTile() throws Exception {
+        TileLoader loader = new TileLoader(2);
+        final AtomicReference<Tile> received = new AtomicReference<Tile>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Future<Tile> f = loader.load(constantProvider(), 12, 1, 2, new TileLoader.Listener() {
+            @Override
+            public void tileLoaded(Tile tile) {
+                received.set(tile);
+                done.countDown();
+            }
+
+            @Override
+            public void tileFailed(Throwable cause) {
+            }
+        });
+        assertSame(TILE, f.get());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertSame(TILE, received.get());
+        loader.shutdown();
+    }
+
+    @Test
+    public void testCancelledRequestIsNotServed() throws Exception {
+        TileLoader loader = new TileLoader(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        TileProvider slow = new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                calls.incrementAndGet();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return TILE;
+            }
+        };
+        Future<Tile> first = loader.load(slow, 12, 1, 2, new NullListener());
+        Future<Tile> second = loader.load(slow, 12, 1, 3, new NullListener());
+        assertTrue(second.cancel(false));
+        blocked.countDown();
+        assertSame(TILE, first.get());
+        // the queue is served in order, so the cancelled request was skipped
+        assertSame(TILE, loader.load(constantProvider(), 12, 1, 4, new NullListener()).get());
+        assertEquals(1, calls.get());
+        loader.shutdown();
+    }
+
+    @Test
+    public void testVisibleRequestsAreServedBeforePrefetches() throws Exception {
+        TileLoader loader = new TileLoader(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final StringBuffer order = new StringBuffer();
+        TileProvider recording = new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.append(x);
+                return TILE;
+            }
+        };
+        loader.load(recording, 12, 0, 0, new NullListener());
+        loader.load(recording, 12, 1, 0, TileLoader.Priority.PREFETCH, new NullListener());
+        loader.load(recording, 12, 2, 0, TileLoader.Priority.PREFETCH, new NullListener());
+        Future<Tile> last = loader.load(recording, 12, 3, 0, new NullListener());
+        blocked.countDown();
+        last.get();
+        loader.load(recording, 12, 4, 0, TileLoader.Priority.PREFETCH, new NullListener()).get();
+        assertEquals("03124", order.toString());
+        loader.shutdown();
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        TileLoader loader = new TileLoader(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Future<Tile> f = loader.load(new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                throw new IllegalStateException("no tile");
+            }
+        }, 12, 1, 2, new TileLoader.Listener() {
+            @Override
+            public void tileLoaded(Tile tile) {
+            }
+
+            @Override
+            public void tileFailed(Throwable cause) {
+                failure.set(cause);
+                done.countDown();
+            }
+        });
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof IllegalStateException);
+        loader.shutdown();
+    }
+
+    private static TileProvider constantProvider() {
+        return new TileProvider() {
+            @Override
+            public Tile tileAt(int zoom, int x, int y) {
+                return TILE;
+            }
+        };
+    }
+
+    private static final class NullListener implements TileLoader.Listener {
+        @Override
+        public void tileLoaded(Tile tile) {
+        }
+
+        @Override
+        public void tileFailed(Throwable cause) {
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ch.epfl.isochrone.timetable;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,8 @@ import org.junit.Test;
 
 import ch.epfl.isochrone.geo.PointWGS84;
 import static java.lang.Math.toRadians;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
  
 
@@ -35,6 +38,31 @@ public class TestFastestPathTree {
     }
     
 
+    @Test
+    public void testChangedStops() {
+        Stop stop1 = new Stop("Stand", new PointWGS84(toRadians(6.5624795866),toRadians(46.5327194855)));
+        Stop stop2 = new Stop("EPFL", new PointWGS84(toRadians(6.56591465573),toRadians(46.5221889086)));
+        Stop stop3 = new Stop("Flon", new PointWGS84(toRadians(6.6296),toRadians(46.5207)));
+        FastestPathTree t1 = new FastestPathTree.Builder(stop1, 100)
+            .setArrivalTime(stop2, 200, stop1)
+            .setArrivalTime(stop3, 300, stop2)
+            .build();
+        // same travel time to stop2, longer to stop3
+        FastestPathTree t2 = new FastestPathTree.Builder(stop1, 160)
+            .setArrivalTime(stop2, 260, stop1)
+            .setArrivalTime(stop3, 400, stop2)
+            .build();
+        FastestPathTree t3 = new FastestPathTree.Builder(stop1, 100)
+            .setArrivalTime(stop2, 200, stop1)
+            .build();
+
+        assertEquals(Collections.singleton(stop3), t1.changedStops(t2));
+        assertEquals(Collections.singleton(stop3), t2.changedStops(t1));
+        assertEquals(Collections.singleton(stop3), t1.changedStops(t3));
+        assertEquals(Collections.singleton(stop3), t3.changedStops(t1));
+        assertTrue(t1.changedStops(t1).isEmpty());
+    }
+
     // Le "test" suivant n'en est pas un à proprement parler, raison pour
     // laquelle il est ignoré (annotation @Ignore). Son seul but est de garantir
     // que les noms des classes et méthodes sont corrects.
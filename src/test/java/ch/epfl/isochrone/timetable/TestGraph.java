@@ -147,6 +147,20 @@ public class TestGraph {
         gb = gb.addAllWalkEdges(10, 0);
     }
     
+    @Test(expected = java.util.concurrent.CancellationException.class)
+    public void testFastestPathsCancelled() {
+        Set<Stop> stops = new HashSet<Stop>();
+        Stop stop1 = new Stop("Stand", new PointWGS84(toRadians(6.5624795866),toRadians(46.5327194855)));
+        Stop stop2 = new Stop("EPFL", new PointWGS84(toRadians(6.56591465573),toRadians(46.5221889086)));
+        stops.add(stop1);
+        stops.add(stop2);
+
+        Graph g = new Graph.Builder(stops).addTripEdge(stop1, stop2, 100, 200).build();
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        g.fastestPaths(stop1, 0, token);
+    }
+
     @Test(expected = java.lang.IllegalArgumentException.class)
     public void testFastestPathsStartStop() throws IOException {
         Date travelDate = new Date(1,10,2013);
@@ -244,6 +244,32 @@ public class TestGraphEdge {
         }
     }
 
+    @Test
+    public void testEarliestArrivalTimeWithBuilderSortedTripsAndDuplicates() {
+        Random gen = new Random();
+        for (int j = 0; j < REPEAT; j++) {
+            Set<Integer> packedTrips = new HashSet<>();
+            GraphEdge.Builder b = new GraphEdge.Builder(null);
+
+            // trips in departure order, every one of them added twice
+            int departureTime = 0;
+            for (int i = 0; i < TRIPS; i++) {
+                departureTime += gen.nextInt(4000);
+                int arrivalTime = departureTime + gen.nextInt(9999);
+                packedTrips.add(GraphEdge.packTrip(departureTime, arrivalTime));
+                b.addTrip(departureTime, arrivalTime);
+                b.addTrip(departureTime, arrivalTime);
+            }
+            GraphEdge edgeBuilder = b.build();
+            GraphEdge e = new GraphEdge(null, -1, packedTrips);
+
+            for (int k = 0; k < REPEAT; k++) {
+                int t = gen.nextInt(departureTime + 1);
+                assertEquals(e.earliestArrivalTime(t), edgeBuilder.earliestArrivalTime(t));
+            }
+        }
+    }
+
     // Test copy in GraphEdge
     @Test
     public void testGraphEdgeConstructor() {
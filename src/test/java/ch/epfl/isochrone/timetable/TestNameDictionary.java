@@ -0,0 +1,47 @@
+package ch.epfl.isochrone.timetable;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestNameDictionary {
+
+    @Test
+    public void testIdsAreDense() {
+        NameDictionary d = new NameDictionary(1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, d.add("stop " + i));
+        }
+        assertEquals(1000, d.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("stop " + i, d.name(i));
+        }
+    }
+
+    @Test
+    public void testAddExistingName() {
+        NameDictionary d = new NameDictionary(4);
+        assertEquals(0, d.add("Flon"));
+        assertEquals(1, d.add("Ouchy"));
+        assertEquals(0, d.add(new String("Flon")));
+        assertEquals(2, d.size());
+    }
+
+    @Test
+    public void testIdOfRegion() {
+        NameDictionary d = new NameDictionary(4);
+        d.add("Croisettes");
+        d.add("Vennes");
+        String line = "2013-SU-Semaine-50-0000100;Croisettes;87120;Vennes;87181";
+        assertEquals(0, d.id(line, 27, 37));
+        assertEquals(1, d.id(line, 44, 50));
+        assertEquals(-1, d.id(line, 0, 26));
+        assertEquals(-1, d.id(line, 27, 36));
+        assertEquals(-1, d.id(line, 0, 0));
+    }
+
+    @Test (expected = IndexOutOfBoundsException.class)
+    public void testInvalidId() {
+        new NameDictionary(4).name(0);
+    }
+}
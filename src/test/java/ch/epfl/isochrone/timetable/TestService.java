@@ -99,4 +99,20 @@ public class TestService {
     }
 
     // A compléter avec de véritables méthodes de test...
+
+    @Test
+    public void testHasSameSchedule() {
+        Date start = new Date(22, Month.MARCH, 2014);
+        Date end = new Date(30, Month.MARCH, 2014);
+        Service.Builder sb = new Service.Builder("s", start, end);
+        sb.addOperatingDay(DayOfWeek.FRIDAY);
+        Service s1 = sb.build();
+        Service s2 = sb.build();
+        assertEquals(true, s1.hasSameSchedule(s2));
+
+        sb.addExcludedDate(new Date(28, Month.MARCH, 2014));
+        assertEquals(false, s1.hasSameSchedule(sb.build()));
+        assertEquals(false, s1.hasSameSchedule(
+                new Service.Builder("t", start, end).addOperatingDay(DayOfWeek.FRIDAY).build()));
+    }
 }
@@ -0,0 +1,203 @@
+package ch.epfl.isochrone.timetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTimeTableReloader {
+
+    private static final String BASE_RESOURCE_NAME = "/testdata/time-table/";
+    private static final String[] FILES = {
+        "stops.csv", "stop_times.csv", "calendar.csv", "calendar_dates.csv"
+    };
+    private static final Date MONDAY = new Date(14, Date.Month.OCTOBER, 2013);
+    private static final Date TUESDAY = new Date(15, Date.Month.OCTOBER, 2013);
+    private static final String EXCLUSION = "2013-SU-Semaine-50-1111000;20131014;2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void copyTimeTable() throws IOException {
+        dir = folder.newFolder("time-table").toPath();
+        for (String f : FILES) {
+            try (InputStream in = getClass().getResourceAsStream(BASE_RESOURCE_NAME + f)) {
+                Files.copy(in, dir.resolve(f), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @Test
+    public void testNoReloadWithoutChange() throws IOException {
+        TimeTableReloader reloader =
+            new TimeTableReloader(new DirectoryTimeTableSource(dir), 300, 1.25);
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        assertFalse(reloader.reloadIfChanged());
+        assertSame(snapshot, reloader.current());
+        assertEquals(0, reloader.reloadCount());
+    }
+
+    @Test
+    public void testReloadSwapsSnapshot() throws IOException {
+        TimeTableReloader reloader =
+            new TimeTableReloader(new DirectoryTimeTableSource(dir), 300, 1.25);
+        final List<Long> generations = new ArrayList<>();
+        reloader.addListener(new TimeTableReloader.Listener() {
+            @Override
+            public void reloaded(TimeTableReloader.Snapshot s, long durationNanos) {
+                generations.add(s.generation());
+            }
+            @Override
+            public void reloadFailed(Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        TimeTableReloader.Snapshot old = reloader.current();
+        Graph oldGraph = old.graphForDate(MONDAY);
+        int oldServices = old.timeTable().servicesForDate(MONDAY).size();
+
+        removeLine("calendar_dates.csv", EXCLUSION);
+        assertTrue(reloader.reloadIfChanged());
+
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        assertEquals(1, snapshot.generation());
+        assertEquals(1, reloader.reloadCount());
+        assertEquals(1, generations.size());
+        assertTrue(reloader.lastReloadNanos() > 0);
+        assertEquals(oldServices + 1, snapshot.timeTable().servicesForDate(MONDAY).size());
+        // the old snapshot is left untouched for the queries still using it
+        assertEquals(oldServices, old.timeTable().servicesForDate(MONDAY).size());
+        assertSame(oldGraph, old.graphForDate(MONDAY));
+    }
+
+    @Test
+    public void testServiceChangeOnlyRebuildsAffectedGraphs() throws IOException {
+        TimeTableReloader reloader =
+            new TimeTableReloader(new DirectoryTimeTableSource(dir), 300, 1.25);
+        TimeTableReloader.Snapshot old = reloader.current();
+        Graph mondayGraph = old.graphForDate(MONDAY);
+        Graph tuesdayGraph = old.graphForDate(TUESDAY);
+        Set<Service> tuesdayServices = old.timeTable().servicesForDate(TUESDAY);
+
+        removeLine("calendar_dates.csv", EXCLUSION);
+        assertTrue(reloader.reloadIfChanged());
+
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        assertSame(tuesdayGraph, snapshot.graphForDate(TUESDAY));
+        assertNotSame(mondayGraph, snapshot.graphForDate(MONDAY));
+        // unchanged services and index entries are shared with the old timetable
+        assertSame(tuesdayServices, snapshot.timeTable().servicesForDate(TUESDAY));
+        assertEquals(old.timeTable().stops(), snapshot.timeTable().stops());
+    }
+
+    @Test
+    public void testStaleSnapshotDoesNotBuildGraphsFromNewFiles() throws IOException {
+        TimeTableReloader reloader =
+            new TimeTableReloader(new DirectoryTimeTableSource(dir), 300, 1.25);
+        TimeTableReloader.Snapshot old = reloader.current();
+        Graph mondayGraph = old.graphForDate(MONDAY);
+        touch("stop_times.csv");
+        // graphs built before the change are still those of the snapshot
+        assertSame(mondayGraph, old.graphForDate(MONDAY));
+        try {
+            old.graphForDate(TUESDAY);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(reloader.reloadIfChanged());
+        reloader.current().graphForDate(TUESDAY);
+    }
+
+    @Test
+    public void testFailedReloadKeepsSnapshot() throws IOException {
+        TimeTableReloader reloader =
+            new TimeTableReloader(new DirectoryTimeTableSource(dir), 300, 1.25);
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        Files.write(dir.resolve("stops.csv"),
+                "broken line\n".getBytes(StandardCharsets.UTF_8));
+        touch("stops.csv");
+        assertFalse(reloader.reloadIfChanged());
+        assertSame(snapshot, reloader.current());
+        assertEquals(1, reloader.failureCount());
+    }
+
+    @Test
+    public void testErrorsDoNotStopTheWatcher() throws Exception {
+        final DirectoryTimeTableSource directory = new DirectoryTimeTableSource(dir);
+        final AtomicBoolean broken = new AtomicBoolean();
+        TimeTableSource source = new TimeTableSource() {
+            @Override
+            public InputStream open(String fileName) throws IOException {
+                return directory.open(fileName);
+            }
+            @Override
+            public long version(String fileName) throws IOException {
+                if (broken.get()) {
+                    // as a read of a mapped file truncated in place
+                    throw new InternalError("truncated");
+                }
+                return directory.version(fileName);
+            }
+        };
+        TimeTableReloader reloader = new TimeTableReloader(source, 300, 1.25);
+        TimeTableReloader.Snapshot snapshot = reloader.current();
+        broken.set(true);
+        reloader.start(10, TimeUnit.MILLISECONDS);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((reloader.failureCount() < 2) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertTrue(reloader.failureCount() >= 2);
+            assertSame(snapshot, reloader.current());
+
+            broken.set(false);
+            removeLine("calendar_dates.csv", EXCLUSION);
+            while ((reloader.reloadCount() == 0) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, reloader.reloadCount());
+        } finally {
+            reloader.stop();
+        }
+    }
+
+    private void removeLine(String fileName, String line) throws IOException {
+        Path file = dir.resolve(fileName);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertTrue(lines.remove(line));
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        touch(fileName);
+    }
+
+    private void touch(String fileName) throws IOException {
+        // make sure the modification time changes even on coarse file systems
+        Path file = dir.resolve(fileName);
+        long time = Files.getLastModifiedTime(file).toMillis() + 2000;
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+}
@@ -0,0 +1,161 @@
+package ch.epfl.isochrone.timetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTimeTableSource {
+
+    private static final String BASE_RESOURCE_NAME = "/testdata/time-table/";
+    private static final String[] FILES = {
+        "stops.csv", "stop_times.csv", "calendar.csv", "calendar_dates.csv"
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDirectorySource() throws IOException {
+        Path dir = folder.newFolder("plain").toPath();
+        for (String f : FILES) {
+            copyResource(f, Files.newOutputStream(dir.resolve(f)));
+        }
+        assertSameTimeTable(new DirectoryTimeTableSource(dir));
+    }
+
+    @Test
+    public void testGzipSource() throws IOException {
+        Path dir = folder.newFolder("gzip").toPath();
+        for (String f : FILES) {
+            copyResource(f, new GZIPOutputStream(
+                    Files.newOutputStream(dir.resolve(f + ".gz"))));
+        }
+        assertSameTimeTable(new GzipTimeTableSource(dir));
+    }
+
+    @Test
+    public void testZipSource() throws IOException {
+        Path zip = folder.newFile("time-table.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (String f : FILES) {
+                out.putNextEntry(new ZipEntry("time-table/" + f));
+                copyResource(f, new NonClosingOutputStream(out));
+                out.closeEntry();
+            }
+        }
+        assertSameTimeTable(new ZipTimeTableSource(zip, "time-table/"));
+    }
+
+    @Test
+    public void testTrailingSeparatorsOfStopTimesAreIgnored() throws IOException {
+        Path dir = folder.newFolder("trailing").toPath();
+        for (String f : FILES) {
+            copyResource(f, Files.newOutputStream(dir.resolve(f)));
+        }
+        Path stopTimes = dir.resolve("stop_times.csv");
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(stopTimes, StandardCharsets.UTF_8)) {
+            lines.add(line + ((lines.size() % 2 == 0) ? ";" : ";;"));
+        }
+        Files.write(stopTimes, lines, StandardCharsets.UTF_8);
+        assertSameTimeTable(new DirectoryTimeTableSource(dir));
+    }
+
+    @Test
+    public void testRewritingKeepingTheModificationTimeChangesTheVersion()
+            throws IOException {
+        Path dir = folder.newFolder("rewritten").toPath();
+        Path stops = dir.resolve("stops.csv");
+        Files.write(stops, "a;46.5;6.6\n".getBytes(StandardCharsets.UTF_8));
+        FileTime time = Files.getLastModifiedTime(stops);
+        TimeTableSource source = new DirectoryTimeTableSource(dir);
+        long version = source.version("stops.csv");
+
+        Files.write(stops, "a;46.5;6.6\nb;46.6;6.7\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(stops, time);
+        assertFalse(version == source.version("stops.csv"));
+    }
+
+    @Test (expected = FileNotFoundException.class)
+    public void testMissingResource() throws IOException {
+        new ResourceTimeTableSource("/does-not-exist/").open("stops.csv");
+    }
+
+    private void assertSameTimeTable(TimeTableSource source) throws IOException {
+        TimeTableReader expectedReader = new TimeTableReader(BASE_RESOURCE_NAME);
+        TimeTableReader actualReader = new TimeTableReader(source);
+        TimeTable expected = expectedReader.readTimeTable();
+        TimeTable actual = actualReader.readTimeTable();
+
+        assertEquals(names(expected.stops()), names(actual.stops()));
+        Date date = new Date(1, Date.Month.OCTOBER, 2013);
+        assertEquals(names(expected.servicesForDate(date)),
+                names(actual.servicesForDate(date)));
+
+        Graph expectedGraph = expectedReader.readGraphForServices(expected.stops(),
+                expected.servicesForDate(date), 300, 1.25);
+        Graph actualGraph = actualReader.readGraphForServices(actual.stops(),
+                actual.servicesForDate(date), 300, 1.25);
+        Stop expectedStart = stopNamed(expected.stops(), "Lausanne-Flon");
+        Stop actualStart = stopNamed(actual.stops(), "Lausanne-Flon");
+        FastestPathTree expectedTree = expectedGraph.fastestPaths(expectedStart, 6 * 3600);
+        FastestPathTree actualTree = actualGraph.fastestPaths(actualStart, 6 * 3600);
+        for (Stop s : actual.stops()) {
+            assertEquals(expectedTree.arrivalTime(stopNamed(expected.stops(), s.name())),
+                    actualTree.arrivalTime(s));
+        }
+    }
+
+    private static Stop stopNamed(Set<Stop> stops, String name) {
+        for (Stop s : stops) {
+            if (s.name().equals(name)) {
+                return s;
+            }
+        }
+        throw new AssertionError("no stop named " + name);
+    }
+
+    private static Set<String> names(Set<?> objects) {
+        Set<String> names = new HashSet<>();
+        for (Object o : objects) {
+            names.add(o.toString());
+        }
+        return names;
+    }
+
+    private void copyResource(String fileName, OutputStream out) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(BASE_RESOURCE_NAME + fileName);
+             OutputStream o = out) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                o.write(buffer, 0, n);
+            }
+        }
+    }
+
+    private static final class NonClosingOutputStream extends java.io.FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) { super(out); }
+        @Override
+        public void close() throws IOException { flush(); }
+    }
+}